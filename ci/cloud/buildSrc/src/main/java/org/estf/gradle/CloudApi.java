@@ -8,10 +8,7 @@
 
 package org.estf.gradle;
 
-import co.elastic.cloud.api.builder.ApiClientBuilder;
-import co.elastic.cloud.api.builder.SaaSAuthenticationRequestBuilder;
 import co.elastic.cloud.api.client.ClusterClient;
-import co.elastic.cloud.api.client.SaaSAuthenticationApi;
 import co.elastic.cloud.api.model.generated.ElasticsearchClusterInfo;
 import co.elastic.cloud.api.model.generated.KibanaClusterInfo;
 import io.swagger.client.ApiClient;
@@ -29,10 +26,6 @@ public class CloudApi {
 
     public ClusterClient createClient() {
 
-        // Get cloud credentials
-        CloudCredentials creds = new CloudCredentials();
-        creds.vaultAuth();
-
         // Check host is set
         host = System.getenv("ESTF_CLOUD_HOST");
         if (host == null) {
@@ -40,28 +33,10 @@ public class CloudApi {
         }
         String url = getUrl();
 
-
-        System.out.println(" .. Setting up API client");
-        // Setup cloud API client
-        ApiClient authApiClient = new ApiClientBuilder()
-                .setBasePath(url)
-                .build();
-        SaaSAuthenticationApi saaSAuthenticationApi = new SaaSAuthenticationApi(authApiClient);
-        String token = saaSAuthenticationApi.login(new SaaSAuthenticationRequestBuilder()
-                .setUsername(creds.getUsername())
-                .setPassword(creds.getPassword())
-                .build()).getToken();
-        token = "Bearer " + token;
-        authenticatedApiClient = new ApiClientBuilder()
-                .setBasePath(url + getRegion())
-                .setApiKey(token).build();
-        authenticatedApiClient.setDebugging(true);
-        System.out.println(" .. Successfully setup API client");
-
-        // Setup cloud cluster client
-        System.out.println(" .. Setting up Cluster client");
-        clusterClient = new ClusterClient(authenticatedApiClient);
-        System.out.println(" .. Successfully setup cluster client");
+        // Login once per build, all tasks share the authenticated client
+        CloudSession session = CloudSession.get(url, url + getRegion());
+        clusterClient = session.getClusterClient();
+        authenticatedApiClient = session.getApiClient();
 
         return clusterClient;
     }
@@ -8,8 +8,6 @@
 package org.estf.gradle;
 
 
-import com.bettercloud.vault.Vault;
-import com.bettercloud.vault.VaultConfig;
 import com.bettercloud.vault.VaultException;
 
 import java.util.Map;
@@ -17,6 +15,8 @@ import java.util.Map;
 
 public class CloudCredentials {
 
+    static final String DEFAULT_VAULT_PATH = "secret/stack-testing/cloud";
+
     private String username;
     private String password;
 
@@ -26,7 +26,7 @@ public class CloudCredentials {
         String vaultPath = System.getenv("VAULT_PATH");
 
         if (vaultPath == null) {
-            vaultPath = "secret/stack-testing/cloud";
+            vaultPath = DEFAULT_VAULT_PATH;
         }
 
         if (vaultAddr == null || vaultToken == null) {
@@ -34,15 +34,7 @@ public class CloudCredentials {
         }
 
         try {
-            final VaultConfig config = new VaultConfig()
-                                            .address(vaultAddr)
-                                            .token(vaultToken)
-                                            .build();
-
-            final Vault vault = new Vault(config);
-            final Map map = vault.logical()
-                                    .read(vaultPath)
-                                    .getData();
+            final Map map = VaultSecrets.read(vaultAddr, vaultToken, vaultPath);
 
             this.username = map.get("username").toString();
             this.password = map.get("password").toString();
@@ -52,6 +44,13 @@ public class CloudCredentials {
         }
     }
 
+    // Start reading the credentials while the build is configured
+    public static void prefetch() {
+        String vaultPath = System.getenv("VAULT_PATH");
+        VaultSecrets.prefetch(System.getenv("VAULT_ADDR"), System.getenv("VAULT_TOKEN"),
+                              vaultPath != null ? vaultPath : DEFAULT_VAULT_PATH);
+    }
+
     public String getUsername() {
         return username;
     }
@@ -0,0 +1,212 @@
+/*
+    Elastic Cloud session shared by all tasks of a build
+
+    Logs in once and keeps a single authenticated API client. The bearer token is
+    renewed in the background before it expires, later calls get a client with the
+    new token. Vault is only read for the first login of a build, closeAll ends the
+    sessions when the build finishes.
+    The expiry is read from the token, ESTF_CLOUD_TOKEN_TTL_MINUTES is used when it
+    cannot be read.
+ */
+
+package org.estf.gradle;
+
+import co.elastic.cloud.api.builder.ApiClientBuilder;
+import co.elastic.cloud.api.builder.SaaSAuthenticationRequestBuilder;
+import co.elastic.cloud.api.client.ClusterClient;
+import co.elastic.cloud.api.client.SaaSAuthenticationApi;
+import io.swagger.client.ApiClient;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+
+public class CloudSession {
+
+    static final long DEFAULT_TTL_MINUTES = 15;
+    static final long REFRESH_MARGIN_MS = 2 * 60 * 1000;
+    static final long MIN_REFRESH_DELAY_MS = 10 * 1000;
+    static final long IDLE_MS = 60 * 60 * 1000;
+
+    private static final Map<String, CloudSession> sessions = new HashMap<>();
+    private static ScheduledExecutorService scheduler;
+
+    private final String authUrl;
+    private final String apiUrl;
+    private CloudCredentials creds;
+    private ApiClient apiClient;
+    private ClusterClient clusterClient;
+    private long expiresAt;
+    private volatile long lastUsed;
+    private ScheduledFuture<?> refresh;
+    private boolean closed;
+
+    private CloudSession(String authUrl, String apiUrl) {
+        this.authUrl = authUrl;
+        this.apiUrl = apiUrl;
+    }
+
+    /**
+     * The session for the given api url, created on first use
+     */
+    public static synchronized CloudSession get(String authUrl, String apiUrl) {
+        CloudSession session = sessions.get(apiUrl);
+        if (session == null) {
+            session = new CloudSession(authUrl, apiUrl);
+            sessions.put(apiUrl, session);
+        }
+        return session;
+    }
+
+    public synchronized ApiClient getApiClient() {
+        if (apiClient == null || System.currentTimeMillis() > expiresAt - REFRESH_MARGIN_MS) {
+            login();
+        }
+        lastUsed = System.currentTimeMillis();
+        return apiClient;
+    }
+
+    public synchronized ClusterClient getClusterClient() {
+        ApiClient client = getApiClient();
+        if (clusterClient == null) {
+            System.out.println(" .. Setting up Cluster client");
+            clusterClient = new ClusterClient(client);
+            System.out.println(" .. Successfully setup cluster client");
+        }
+        return clusterClient;
+    }
+
+    /**
+     * End all sessions and stop renewing their tokens, the next build logs in and reads vault again
+     */
+    public static void closeAll() {
+        List<CloudSession> closing;
+        synchronized (CloudSession.class) {
+            closing = new ArrayList<>(sessions.values());
+            sessions.clear();
+        }
+        // Closed outside the class lock, a login holds its session lock while it schedules a refresh
+        for (CloudSession session : closing) {
+            session.close();
+        }
+        synchronized (CloudSession.class) {
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+                scheduler = null;
+            }
+        }
+    }
+
+    private synchronized void close() {
+        closed = true;
+        if (refresh != null) {
+            refresh.cancel(false);
+            refresh = null;
+        }
+        apiClient = null;
+        clusterClient = null;
+        creds = null;
+    }
+
+    private synchronized void login() {
+        if (creds == null) {
+            CloudCredentials credentials = new CloudCredentials();
+            credentials.vaultAuth();
+            creds = credentials;
+        }
+
+        System.out.println(" .. Logging in to " + authUrl);
+        ApiClient authApiClient = new ApiClientBuilder()
+                .setBasePath(authUrl)
+                .build();
+        SaaSAuthenticationApi saaSAuthenticationApi = new SaaSAuthenticationApi(authApiClient);
+        String token = saaSAuthenticationApi.login(new SaaSAuthenticationRequestBuilder()
+                .setUsername(creds.getUsername())
+                .setPassword(creds.getPassword())
+                .build()).getToken();
+        long now = System.currentTimeMillis();
+        expiresAt = getExpiry(token, now);
+
+        // A new client for the new token, tasks still using the old one are not changed under them
+        System.out.println(" .. Setting up API client");
+        apiClient = new ApiClientBuilder()
+                .setBasePath(apiUrl)
+                .setApiKey("Bearer " + token).build();
+        apiClient.setDebugging(true);
+        clusterClient = null;
+        System.out.println(" .. Successfully setup API client");
+        System.out.println(" .. Token valid for " + (expiresAt - now) / 1000 + " s");
+        scheduleRefresh(now);
+    }
+
+    private synchronized void refresh() {
+        if (!closed) {
+            login();
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "cloud-session");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scheduler;
+    }
+
+    private void scheduleRefresh(long now) {
+        if (refresh != null) {
+            refresh.cancel(false);
+        }
+        long delay = Math.max(MIN_REFRESH_DELAY_MS, expiresAt - REFRESH_MARGIN_MS - now);
+        refresh = getScheduler().schedule(() -> {
+            // A session nobody used for a while logs in again on its next use instead
+            if (System.currentTimeMillis() - lastUsed > IDLE_MS) {
+                return;
+            }
+            try {
+                refresh();
+            } catch (RuntimeException e) {
+                // The next getApiClient logs in again
+                System.out.println(" .. Warning unable to refresh token: " + e.getMessage());
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Expiry of the token from its exp claim, the configured ttl if it has none
+     */
+    static long getExpiry(String token, long now) {
+        String[] parts = token.split("\\.");
+        if (parts.length == 3) {
+            try {
+                String claims = new String(Base64.getUrlDecoder().decode(parts[1]), StandardCharsets.UTF_8);
+                long exp = new JSONObject(claims).optLong("exp", 0);
+                if (exp > 0) {
+                    return exp * 1000;
+                }
+            } catch (RuntimeException ignored) {}
+        }
+        String ttl = System.getenv("ESTF_CLOUD_TOKEN_TTL_MINUTES");
+        long minutes = DEFAULT_TTL_MINUTES;
+        if (ttl != null) {
+            try {
+                minutes = Long.parseLong(ttl.trim());
+            } catch (NumberFormatException e) {
+                System.out.println(" .. Warning invalid ESTF_CLOUD_TOKEN_TTL_MINUTES: " + ttl);
+            }
+        }
+        return now + minutes * 60 * 1000;
+    }
+}
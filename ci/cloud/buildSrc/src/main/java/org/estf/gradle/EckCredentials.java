@@ -8,8 +8,6 @@
 package org.estf.gradle;
 
 
-import com.bettercloud.vault.Vault;
-import com.bettercloud.vault.VaultConfig;
 import com.bettercloud.vault.VaultException;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
@@ -23,6 +21,8 @@ import java.util.Map;
 
 public class EckCredentials {
 
+    static final String DEFAULT_VAULT_PATH = "secret/stack-testing/eck";
+
     @Input
     String dir;
 
@@ -35,7 +35,7 @@ public class EckCredentials {
         String vaultPath = System.getenv("VAULT_PATH");
 
         if (vaultPath == null) {
-            vaultPath = "secret/stack-testing/eck";
+            vaultPath = DEFAULT_VAULT_PATH;
         }
 
         if (vaultAddr == null || vaultToken == null) {
@@ -43,15 +43,7 @@ public class EckCredentials {
         }
 
         try {
-            final VaultConfig config = new VaultConfig()
-                                            .address(vaultAddr)
-                                            .token(vaultToken)
-                                            .build();
-
-            final Vault vault = new Vault(config);
-            final Map map = vault.logical()
-                                    .read(vaultPath)
-                                    .getData();
+            final Map map = VaultSecrets.read(vaultAddr, vaultToken, vaultPath);
 
             String policy = map.get("policy").toString();
 
@@ -71,6 +63,13 @@ public class EckCredentials {
         }
     }
 
+    // Start reading the credentials while the build is configured
+    public static void prefetch() {
+        String vaultPath = System.getenv("VAULT_PATH");
+        VaultSecrets.prefetch(System.getenv("VAULT_ADDR"), System.getenv("VAULT_TOKEN"),
+                              vaultPath != null ? vaultPath : DEFAULT_VAULT_PATH);
+    }
+
     public String getFileName() {
         return this.filename;
     }
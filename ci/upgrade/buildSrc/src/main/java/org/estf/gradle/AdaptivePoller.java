@@ -0,0 +1,135 @@
+package org.estf.gradle;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+
+/**
+ * AdaptivePoller
+ *
+ * Decides how long to wait before checking a long running operation again. Checks start
+ * fast and back off, but never wait much longer than the estimated time left. There is no
+ * fixed deadline: the operation may take as long as it needs while its progress keeps moving,
+ * and is given up on once progress stalls for the stall timeout, or after the max time.
+ * Every check is kept in a timeline that is printed as csv and added to the http metrics.
+ *
+ * Timeouts can be changed with ESTF_POLL_STALL_SECONDS and ESTF_POLL_MAX_MINUTES.
+ */
+public class AdaptivePoller {
+
+    static final long INITIAL_INTERVAL_MS = 250;
+    static final long MAX_INTERVAL_MS = 10000;
+    static final double BACKOFF = 1.5;
+    static final int DEFAULT_STALL_SECONDS = 180;
+    static final int DEFAULT_MAX_MINUTES = 120;
+
+    private final String name;
+    private final long stallTimeoutMs;
+    private final long maxTimeMs;
+    private final long start = System.currentTimeMillis();
+    private final JSONArray timeline = new JSONArray();
+
+    private long intervalMs = INITIAL_INTERVAL_MS;
+    private double lastProgress = -1;
+    private long lastAdvance = start;
+    private double firstFraction = -1;
+    private long firstFractionTime;
+
+    public AdaptivePoller(String name) {
+        this(name, RetryPolicy.getEnvInt("ESTF_POLL_STALL_SECONDS", DEFAULT_STALL_SECONDS) * 1000L,
+             RetryPolicy.getEnvInt("ESTF_POLL_MAX_MINUTES", DEFAULT_MAX_MINUTES) * 60000L);
+    }
+
+    public AdaptivePoller(String name, long stallTimeoutMs, long maxTimeMs) {
+        this.name = name;
+        this.stallTimeoutMs = stallTimeoutMs;
+        this.maxTimeMs = maxTimeMs;
+    }
+
+    /**
+     * Record a check and return how long to wait before the next one. progress is any value
+     * that grows while the operation moves on, fraction the completed part of the current
+     * phase between 0 and 1, or -1 when unknown. Throws once the operation stalled or ran too long.
+     */
+    public long next(String state, double progress, double fraction) throws IOException {
+        long now = System.currentTimeMillis();
+        long elapsed = now - start;
+        if (progress > lastProgress) {
+            lastProgress = progress;
+            lastAdvance = now;
+        }
+        long eta = estimate(now, fraction);
+        intervalMs = Math.min(Math.min(MAX_INTERVAL_MS, stallTimeoutMs / 4), (long) (intervalMs * BACKOFF));
+        if (eta >= 0) {
+            intervalMs = Math.max(INITIAL_INTERVAL_MS, Math.min(intervalMs, eta / 2));
+        }
+        timeline.put(new JSONObject()
+                .put("elapsed_ms", elapsed)
+                .put("state", state)
+                .put("progress", progress)
+                .put("fraction", fraction)
+                .put("eta_ms", eta)
+                .put("next_ms", intervalMs));
+        System.out.println(String.format("%s: %s, progress %.2f, %s, next check in %d ms", name, state, progress,
+                                         eta >= 0 ? "eta " + eta / 1000 + " s" : "no eta", intervalMs));
+        if (now - lastAdvance > stallTimeoutMs) {
+            finish("stalled");
+            throw new IOException(name + " stalled! No progress for " + (now - lastAdvance) + " ms");
+        }
+        if (elapsed > maxTimeMs) {
+            finish("timed out");
+            throw new IOException(name + " timed out after " + elapsed + " ms");
+        }
+        return intervalMs;
+    }
+
+    /**
+     * Sleep for the wait returned by next
+     */
+    public void await(String state, double progress, double fraction) throws IOException, InterruptedException {
+        Thread.sleep(next(state, progress, fraction));
+    }
+
+    /**
+     * Estimated time left from the rate the fraction grew at so far, -1 while unknown or once
+     * the fraction is complete
+     */
+    private long estimate(long now, double fraction) {
+        if (fraction < 0 || fraction > 1) {
+            firstFraction = -1;
+            return -1;
+        }
+        if (firstFraction < 0 || fraction < firstFraction) {
+            firstFraction = fraction;
+            firstFractionTime = now;
+            return -1;
+        }
+        // A completed phase may still be finalizing, there is nothing left to estimate then and
+        // the checks back off as usual instead of running at the initial interval
+        if (fraction >= 1 || fraction == firstFraction || now == firstFractionTime) {
+            return -1;
+        }
+        double rate = (fraction - firstFraction) / (now - firstFractionTime);
+        return (long) ((1 - fraction) / rate);
+    }
+
+    /**
+     * Print the timeline and add it to the http metrics
+     */
+    public void finish(String result) {
+        long elapsed = System.currentTimeMillis() - start;
+        System.out.println("timeline," + name + ",elapsed_ms,state,progress,fraction,eta_ms,next_ms");
+        for (int i = 0; i < timeline.length(); i++) {
+            JSONObject sample = timeline.getJSONObject(i);
+            System.out.println("timeline," + name + "," + sample.get("elapsed_ms") + "," + sample.get("state") + "," +
+                               sample.get("progress") + "," + sample.get("fraction") + "," + sample.get("eta_ms") +
+                               "," + sample.get("next_ms"));
+        }
+        System.out.println(name + ": " + result + " after " + elapsed + " ms and " + timeline.length() + " checks");
+        RequestMetrics.recordTimeline(name, new JSONObject()
+                .put("result", result)
+                .put("elapsed_ms", elapsed)
+                .put("samples", timeline));
+    }
+}
@@ -0,0 +1,73 @@
+package org.estf.gradle;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * AsyncRestApi
+ *
+ * CompletableFuture counterpart of the RestApi calls that read their response. The requests are
+ * built and sent by RestApi, so they go through HttpClientPool with its retries, circuit breaker
+ * and request metrics. They run on one executor for the whole build, as many threads as the pool
+ * keeps connections per host, so callers fan out requests without a thread pool of their own.
+ */
+public class AsyncRestApi {
+
+    static final int THREADS = HttpClientPool.MAX_CONNECTIONS_PER_ROUTE;
+
+    private static ExecutorService executor;
+
+    private final RestApi api;
+
+    AsyncRestApi(RestApi api) {
+        this.api = api;
+    }
+
+    public <T> CompletableFuture<T> get(String path, RestApi.ResponseReader<T> reader) {
+        return submit(() -> api.get(path, reader));
+    }
+
+    public <T> CompletableFuture<T> post(String path, String jsonStr, Boolean postToKbn,
+                                         RestApi.ResponseReader<T> reader) {
+        return submit(() -> api.post(path, jsonStr, postToKbn, reader));
+    }
+
+    private interface Call<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * The future fails with the IOException of the call, like the blocking RestApi throws it
+     */
+    private static <T> CompletableFuture<T> submit(Call<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        getExecutor().execute(() -> {
+            try {
+                future.complete(call.run());
+            } catch (IOException | RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(THREADS, r -> {
+                Thread thread = new Thread(r, "async-rest-api");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+
+    public static synchronized void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+}
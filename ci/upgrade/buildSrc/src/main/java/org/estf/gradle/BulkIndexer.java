@@ -0,0 +1,329 @@
+package org.estf.gradle;
+
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BulkIndexer
+ *
+ * Cuts a stream of NDJSON bulk lines into _bulk request bodies bounded by document count
+ * and bytes, and sends up to a fixed number of bodies concurrently while the caller keeps
+ * producing the next one.
+ *
+ * Documents the cluster rejected with 429 are sent again on their own, with backoff; while
+ * backing off no new body is sent, so a busy cluster slows the producer down instead of
+ * rejecting more. Any other per-document failure is collected in the errors.
+ *
+ * Defaults can be changed with ESTF_BULK_MAX_DOCS, ESTF_BULK_MAX_BYTES and ESTF_BULK_CONCURRENCY.
+ */
+public class BulkIndexer implements AutoCloseable {
+
+    static final int DEFAULT_MAX_DOCS = 5000;
+    static final int DEFAULT_MAX_BYTES = 5 * 1024 * 1024;
+    static final int DEFAULT_CONCURRENCY = 2;
+    static final int MAX_REJECTED_RETRIES = 8;
+    static final long INITIAL_BACKOFF_MS = 500;
+    static final long MAX_BACKOFF_MS = 30000;
+
+    private static final ContentType NDJSON = ContentType.create("application/x-ndjson", StandardCharsets.UTF_8);
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final RestApi api;
+    private final String bulkUrl;
+    private final int maxDocs;
+    private final int maxBytes;
+    private final int concurrency;
+    private final ExecutorService sender;
+    private final Semaphore inFlight;
+    private final List<String> errors = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicLong indexed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final long startNanos = System.nanoTime();
+
+    private List<byte[]> batch = new ArrayList<>();
+    private int batchBytes;
+    private volatile IOException failure;
+    private volatile long pausedUntil;
+    private long docs;
+    private long elapsedNanos = -1;
+
+    public BulkIndexer(RestApi api, String bulkUrl) {
+        this(api, bulkUrl,
+             RetryPolicy.getEnvInt("ESTF_BULK_MAX_DOCS", DEFAULT_MAX_DOCS),
+             RetryPolicy.getEnvInt("ESTF_BULK_MAX_BYTES", DEFAULT_MAX_BYTES),
+             RetryPolicy.getEnvInt("ESTF_BULK_CONCURRENCY", DEFAULT_CONCURRENCY));
+    }
+
+    public BulkIndexer(RestApi api, String bulkUrl, int maxDocs, int maxBytes, int concurrency) {
+        if (maxDocs < 1 || maxBytes < 1 || concurrency < 1) {
+            throw new IllegalArgumentException("Bulk limits must be positive: docs=" + maxDocs +
+                                               " bytes=" + maxBytes + " concurrency=" + concurrency);
+        }
+        this.api = api;
+        this.bulkUrl = bulkUrl;
+        this.maxDocs = maxDocs;
+        this.maxBytes = maxBytes;
+        this.concurrency = concurrency;
+        this.inFlight = new Semaphore(concurrency);
+        this.sender = Executors.newFixedThreadPool(concurrency, r -> {
+            Thread thread = new Thread(r, "bulk-indexer-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Add one bulk operation, the action line and its source line (null for a delete)
+     */
+    public void add(String action, String source) throws IOException {
+        checkFailure();
+        byte[] op = (source != null ? action + "\n" + source + "\n" : action + "\n").getBytes(StandardCharsets.UTF_8);
+        if (! batch.isEmpty() && (batch.size() >= maxDocs || batchBytes + op.length > maxBytes)) {
+            flush();
+        }
+        batch.add(op);
+        batchBytes += op.length;
+        docs++;
+    }
+
+    /**
+     * Add every operation of an NDJSON bulk stream, keeping each action with its source
+     */
+    public void addAll(BufferedReader reader) throws IOException {
+        String action;
+        while ((action = reader.readLine()) != null) {
+            if (action.trim().isEmpty()) {
+                continue;
+            }
+            String source = null;
+            if (! action.trim().startsWith("{\"delete\"")) {
+                source = reader.readLine();
+                if (source == null) {
+                    throw new IOException("Bulk data ends without a source for: " + action);
+                }
+            }
+            add(action, source);
+        }
+    }
+
+    /**
+     * Send what has been batched so far, blocks while all senders are busy
+     */
+    public void flush() throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        acquire();
+        checkFailureAndRelease();
+        List<byte[]> ops = batch;
+        batch = new ArrayList<>();
+        batchBytes = 0;
+        sender.execute(() -> {
+            try {
+                send(ops);
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                failure = new IOException("Bulk request failed: " + e.getMessage(), e);
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    /**
+     * Send one batch, then keep sending the documents rejected with 429 until none are left
+     */
+    private void send(List<byte[]> ops) throws IOException {
+        int retries = 0;
+        while (! ops.isEmpty() && failure == null) {
+            waitWhilePaused();
+            ByteArrayOutputStream body = new ByteArrayOutputStream(batchSize(ops));
+            for (byte[] op : ops) {
+                body.write(op);
+            }
+            List<JsonResponses.BulkItem> items = api.post(bulkUrl, new ByteArrayEntity(body.toByteArray(), NDJSON),
+                                                          JsonResponses::readBulkItems);
+            requests.incrementAndGet();
+            bytesSent.addAndGet(body.size());
+            if (items.size() != ops.size()) {
+                throw new IOException("FAILED! Bulk response has " + items.size() + " items for " +
+                                      ops.size() + " operations");
+            }
+            List<byte[]> retry = new ArrayList<>();
+            for (int i = 0; i < items.size(); i++) {
+                JsonResponses.BulkItem item = items.get(i);
+                if (item.status == 429) {
+                    retry.add(ops.get(i));
+                } else if (item.error != null) {
+                    errors.add(item.id + " " + item.error);
+                } else {
+                    indexed.incrementAndGet();
+                }
+            }
+            if (retry.isEmpty()) {
+                return;
+            }
+            rejected.addAndGet(retry.size());
+            if (++retries > MAX_REJECTED_RETRIES) {
+                errors.add(retry.size() + " documents still rejected after " + MAX_REJECTED_RETRIES + " retries");
+                return;
+            }
+            long backoff = backoff(retries);
+            System.out.println("Bulk: " + retry.size() + " of " + ops.size() +
+                               " documents rejected (429), retrying in " + backoff + " ms");
+            pause(backoff);
+            ops = retry;
+        }
+    }
+
+    /**
+     * Hold back every sender until the cluster had time to drain its queues
+     */
+    private synchronized void pause(long millis) {
+        pausedUntil = Math.max(pausedUntil, System.currentTimeMillis() + millis);
+    }
+
+    private void waitWhilePaused() throws InterruptedIOException {
+        long wait;
+        while ((wait = pausedUntil - System.currentTimeMillis()) > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while backing off bulk request");
+            }
+        }
+    }
+
+    /**
+     * Exponential backoff with equal jitter
+     */
+    private static long backoff(int retry) {
+        long max = Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << Math.min(retry - 1, 16));
+        return max / 2 + ThreadLocalRandom.current().nextLong(max / 2 + 1);
+    }
+
+    private static int batchSize(List<byte[]> ops) {
+        int size = 0;
+        for (byte[] op : ops) {
+            size += op.length;
+        }
+        return size;
+    }
+
+    /**
+     * Operations added so far
+     */
+    public long getDocs() {
+        return docs;
+    }
+
+    /**
+     * Operations the cluster acknowledged
+     */
+    public long getIndexed() {
+        return indexed.get();
+    }
+
+    /**
+     * Documents that had to be sent again after a 429
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * Errors of the documents the cluster did not index
+     */
+    public List<String> getErrors() {
+        return new ArrayList<>(errors);
+    }
+
+    /**
+     * Time since the indexer was created, or until it was closed
+     */
+    public long getElapsedMillis() {
+        return (elapsedNanos >= 0 ? elapsedNanos : System.nanoTime() - startNanos) / 1000000;
+    }
+
+    /**
+     * Throughput so far, or of the whole run once closed
+     */
+    public String summary() {
+        long nanos = elapsedNanos >= 0 ? elapsedNanos : System.nanoTime() - startNanos;
+        double seconds = Math.max(nanos, 1) / 1e9;
+        return String.format("Bulk: %d docs in %d requests (%d concurrent), %.1f s, %.0f docs/s, %.2f MB/s, " +
+                             "%d rejected and retried, %d failed",
+                             indexed.get(), requests.get(), concurrency, seconds, indexed.get() / seconds,
+                             bytesSent.get() / (1024.0 * 1024.0) / seconds, rejected.get(), errors.size());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (elapsedNanos >= 0) {
+            return;
+        }
+        try {
+            flush();
+            acquireAll();
+            inFlight.release(concurrency);
+            checkFailure();
+        } finally {
+            elapsedNanos = System.nanoTime() - startNanos;
+            sender.shutdownNow();
+        }
+    }
+
+    private void acquire() throws InterruptedIOException {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for bulk request");
+        }
+    }
+
+    private void acquireAll() throws InterruptedIOException {
+        try {
+            inFlight.acquire(concurrency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for bulk requests");
+        }
+    }
+
+    private void checkFailureAndRelease() throws IOException {
+        if (failure != null) {
+            inFlight.release();
+            throw failure;
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.estf.gradle;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * CircuitBreaker
+ *
+ * Per host breaker. After a run of consecutive failures the host is considered down and
+ * requests are held back until the open period ends, then a single trial request is let
+ * through to decide whether to close again.
+ */
+public class CircuitBreaker {
+
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    static final int FAILURE_THRESHOLD = 5;
+    static final long OPEN_MS = 30000;
+
+    private static final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    private final String host;
+    private final LongSupplier clock;
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean trialInFlight;
+
+    CircuitBreaker(String host) {
+        this(host, System::currentTimeMillis);
+    }
+
+    CircuitBreaker(String host, LongSupplier clock) {
+        this.host = host;
+        this.clock = clock;
+    }
+
+    public static CircuitBreaker forHost(String host) {
+        return breakers.computeIfAbsent(host, CircuitBreaker::new);
+    }
+
+    /**
+     * Returns 0 if a request may go out now, otherwise how many ms until the breaker half opens
+     */
+    public synchronized long acquire() {
+        long now = clock.getAsLong();
+        if (state == State.OPEN) {
+            long remaining = openedAt + OPEN_MS - now;
+            if (remaining > 0) {
+                return remaining;
+            }
+            state = State.HALF_OPEN;
+            trialInFlight = false;
+        }
+        if (state == State.HALF_OPEN) {
+            if (trialInFlight) {
+                return 1000;
+            }
+            trialInFlight = true;
+        }
+        return 0;
+    }
+
+    public synchronized void onSuccess() {
+        if (state != State.CLOSED) {
+            System.out.println("Circuit closed for host: " + host);
+        }
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        trialInFlight = false;
+    }
+
+    public synchronized void onFailure() {
+        consecutiveFailures++;
+        trialInFlight = false;
+        if (state == State.HALF_OPEN || consecutiveFailures >= FAILURE_THRESHOLD) {
+            if (state != State.OPEN) {
+                System.out.println("Circuit opened for host: " + host + " after " +
+                                   consecutiveFailures + " failures");
+                RetryMetrics.recordCircuitOpen(host);
+            }
+            state = State.OPEN;
+            openedAt = clock.getAsLong();
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+}
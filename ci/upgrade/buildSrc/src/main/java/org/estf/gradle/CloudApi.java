@@ -2,6 +2,7 @@ package org.estf.gradle;
 
 import co.elastic.cloud.api.client.generated.DeploymentsApi;
 import co.elastic.cloud.api.model.generated.ApmInfo;
+import co.elastic.cloud.api.model.generated.DeploymentGetResponse;
 import co.elastic.cloud.api.model.generated.ElasticsearchClusterInfo;
 import co.elastic.cloud.api.model.generated.EnterpriseSearchInfo;
 import co.elastic.cloud.api.model.generated.KibanaClusterInfo;
@@ -13,6 +14,12 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * CloudApi
@@ -22,6 +29,14 @@ import java.util.ArrayList;
  */
 public class CloudApi {
 
+    // Resource kinds, as named by the deployments api
+    static final String ELASTICSEARCH = "elasticsearch";
+    static final String KIBANA = "kibana";
+    static final String APM = "apm";
+    static final String ENTERPRISE_SEARCH = "enterprise_search";
+
+    private static final Map<String, ApiClient> clients = new HashMap<>();
+
     private String host = "public-api.staging.foundit.no";
     final private ApiClient apiClient;
     final private String esRefId = "main-elasticsearch";
@@ -37,14 +52,36 @@ public class CloudApi {
             host = estf_host;
         }
         String url = getUrl();
+        apiClient = getSharedClient(url, credentials);
+    }
 
+    /**
+     * One client per api url and api key for the whole build, tasks running side by side share
+     * its connections. A new vault key gets a new client, closeAll drops them when the build finishes.
+     */
+    private static synchronized ApiClient getSharedClient(String url, VaultCredentials credentials) {
+        String apiKey = credentials.getApiKey();
+        String key = url + " " + apiKey;
+        ApiClient client = clients.get(key);
+        if (client != null) {
+            return client;
+        }
         System.out.println("Debug: Setting up API client");
-        apiClient = new ApiClient();
-        apiClient.setApiKey(credentials.getApiKey());
-        apiClient.setApiKeyPrefix("ApiKey");
-        apiClient.setBasePath(url);
-        apiClient.setDebugging(true);
+        client = new ApiClient();
+        client.setApiKey(apiKey);
+        client.setApiKeyPrefix("ApiKey");
+        client.setBasePath(url);
+        client.setDebugging(true);
         System.out.println("Debug: API URL: " + url);
+        clients.put(key, client);
+        return client;
+    }
+
+    /**
+     * Drop the shared clients, so a daemon does not keep their api keys past the build
+     */
+    public static synchronized void closeAll() {
+        clients.clear();
     }
 
     public ApiClient getApiClient() {
@@ -84,63 +121,120 @@ public class CloudApi {
     }
 
     public void waitForElasticsearch(DeploymentsApi deploymentsApi, String deploymentId) {
-        Waiter.waitFor(() -> this.isElasticsearchClusterRunning(
-                deploymentsApi.getDeploymentEsResourceInfo(
-                        deploymentId,
-                        this.esRefId,
-                        false,
-                        false,
-                        false,
-                        false,
-                        false,
-                        false,
-                        false,
-                        0,
-                        false,
-                        false).getInfo()));
+        waitForResources(deploymentsApi, deploymentId, ELASTICSEARCH);
     }
 
     public void waitForKibana(DeploymentsApi deploymentsApi, String deploymentId) {
-        Waiter.waitFor(() -> this.isKibanaClusterRunning(
-                deploymentsApi.getDeploymentKibResourceInfo(
-                        deploymentId,
-                        this.kbRefId,
-                        false,
-                        false,
-                        false,
-                        false,
-                        false,
-                        false,
-                        false).getInfo()
-        ));
+        waitForResources(deploymentsApi, deploymentId, KIBANA);
     }
 
     public void waitForApm(DeploymentsApi deploymentsApi, String deploymentId) {
-        Waiter.waitFor(() -> this.isApmRunning(
-                deploymentsApi.getDeploymentApmResourceInfo(
-                        deploymentId,
-                        this.apmRefId,
-                        false,
-                        false,
-                        false,
-                        false,
-                        false,
-                        false).getInfo()
-        ));
+        waitForResources(deploymentsApi, deploymentId, APM);
     }
 
     public void waitForEnterpriseSearch(DeploymentsApi deploymentsApi, String deploymentId) {
-        Waiter.waitFor(() -> this.isEnterpriseSearchRunning(
-                deploymentsApi.getDeploymentEnterpriseSearchResourceInfo(
-                        deploymentId,
-                        this.ensRefId,
-                        false,
-                        false,
-                        false,
-                        false,
-                        false,
-                        false).getInfo()
-        ));
+        waitForResources(deploymentsApi, deploymentId, ENTERPRISE_SEARCH);
+    }
+
+    /**
+     * The deployment and all its resources from a single request, with their current plans
+     * when plans is set
+     */
+    public DeploymentState getDeploymentState(DeploymentsApi deploymentsApi, String deploymentId, boolean plans) {
+        DeploymentGetResponse deployment = deploymentsApi.getDeployment(
+                deploymentId,
+                false,
+                plans,
+                plans,
+                false,
+                false,
+                plans,
+                false,
+                0,
+                plans,
+                false);
+        return new DeploymentState(this, deployment);
+    }
+
+    /**
+     * Wait until all the given resources are running. Every check is a single deployment
+     * request that covers all of them, a resource is reported once when it is first seen running.
+     */
+    public void waitForResources(DeploymentsApi deploymentsApi, String deploymentId, String... resources) {
+        Map<String, String> versions = new LinkedHashMap<>();
+        for (String resource : resources) {
+            versions.put(resource, null);
+        }
+        waitForResources(deploymentsApi, deploymentId, versions, false);
+    }
+
+    /**
+     * Wait until each resource runs the plan of its version once no plan change is pending, of
+     * any version for a null one. Unlike waitForResources it does not return while a resource
+     * still runs its old plan right after a change request, so it is used for upgrades.
+     */
+    public void waitForVersions(DeploymentsApi deploymentsApi, String deploymentId, Map<String, String> versions) {
+        waitForResources(deploymentsApi, deploymentId, versions, true);
+    }
+
+    private void waitForResources(DeploymentsApi deploymentsApi, String deploymentId, Map<String, String> versions,
+                                  boolean plans) {
+        Set<String> waiting = new LinkedHashSet<>(versions.keySet());
+        long start = System.currentTimeMillis();
+        Waiter.waitFor(() -> {
+            DeploymentState state = getDeploymentState(deploymentsApi, deploymentId, plans);
+            waiting.removeIf(resource -> {
+                String version = versions.get(resource);
+                String running = plans ? state.getRunningVersion(resource) : null;
+                boolean ready = plans ? running != null && (version == null || version.equals(running)) :
+                                state.isRunning(resource);
+                if (! ready) {
+                    return false;
+                }
+                long millis = System.currentTimeMillis() - start;
+                System.out.println("Deployment " + deploymentId + ": " + resource + " running" +
+                                   (running != null ? " " + running : "") + " after " + millis + " ms");
+                RequestMetrics.recordTask("wait " + resource, millis);
+                return true;
+            });
+            return waiting.isEmpty();
+        });
+    }
+
+    /**
+     * Restart kibana and wait until it runs again, e.g. once its indices were restored underneath
+     * it. The restart is asynchronous, so kibana is given a while to stop first, else it could be
+     * reported running before it restarted.
+     */
+    public void restartKibana(DeploymentsApi deploymentsApi, String deploymentId) {
+        long start = System.currentTimeMillis();
+        deploymentsApi.restartDeploymentStatelessResource(deploymentId, KIBANA, kbRefId, false);
+        long deadline = start + RetryPolicy.getEnvInt("ESTF_KIBANA_RESTART_BEGIN_SECONDS", 60) * 1000L;
+        Waiter.waitFor(() -> ! getDeploymentState(deploymentsApi, deploymentId, false).isRunning(KIBANA) ||
+                             System.currentTimeMillis() > deadline);
+        waitForKibana(deploymentsApi, deploymentId);
+        long millis = System.currentTimeMillis() - start;
+        System.out.println("Deployment " + deploymentId + ": kibana restarted in " + millis + " ms");
+        RequestMetrics.recordTask("restart " + KIBANA, millis);
+    }
+
+    /**
+     * Restart kibana of the deployment with the shared api client
+     */
+    static void restartKibana(String deploymentId) throws IOException {
+        try {
+            CloudApi cloudApi = new CloudApi();
+            cloudApi.restartKibana(new DeploymentsApi(cloudApi.getApiClient()), deploymentId);
+        } catch (VaultException e) {
+            throw new IOException("FAILED! Unable to restart kibana of deployment " + deploymentId, e);
+        }
+    }
+
+    /**
+     * True once every resource the deployment has is running, from a single deployment request
+     */
+    public boolean isDeploymentRunning(DeploymentsApi deploymentsApi, String deploymentId) {
+        return getDeploymentState(deploymentsApi, deploymentId, false).isRunning();
     }
 
     public String getEnvRegion() {
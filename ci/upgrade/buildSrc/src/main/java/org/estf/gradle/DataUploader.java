@@ -0,0 +1,193 @@
+package org.estf.gradle;
+
+import com.google.gson.stream.JsonReader;
+import org.apache.http.HttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * DataUploader
+ *
+ * Loads the bank account data, its index pattern and the kibana sample data, or restores them
+ * from the seed snapshot. The UploadData task runs it for a job, UpgradeEssPaths for every path.
+ */
+public class DataUploader {
+
+    public String esBaseUrl;
+    public String kbnBaseUrl;
+    public String username;
+    public String password;
+    public String version;
+    public String upgradeVersion;
+
+    // Load with refresh and replicas turned off, see FastLoad
+    public boolean fastLoad = false;
+
+    // Restore the data from the seed snapshot of the version, or upload and snapshot it, see SeedSnapshot
+    public boolean seedSnapshot = false;
+
+    // Kibana of the deployment is restarted after a seed restore replaced its indices
+    public String deploymentId;
+    public boolean localDeployments = false;
+
+    // Skip the parts a failed run completed, see UpgradeCheckpoint
+    public String checkpointFile;
+
+    // Prefix of the parts in the checkpoint
+    public String checkpointPrefix = "upload_data";
+
+    public void run() throws IOException {
+        RestApi api = new RestApi(username, password, version, upgradeVersion);
+        int majorVersion = api.setMajorVersion();
+        SeedSnapshot seed = seedSnapshot ? new SeedSnapshot(api, esBaseUrl, version) : null;
+        if (seed != null && (deploymentId == null || deploymentId.trim().isEmpty())) {
+            System.err.println("Warning no deploymentId to restart kibana with, uploading instead of a seed restore");
+        } else if (seed != null && seed.restore(this::restartKibana)) {
+            return;
+        }
+        UpgradeCheckpoint checkpoint = checkpointFile != null ? UpgradeCheckpoint.get(new File(checkpointFile)) : null;
+        long start = System.currentTimeMillis();
+        UpgradeCheckpoint.run(checkpoint, checkpointPrefix + ":bank", this::uploadBankAccountData);
+        UpgradeCheckpoint.run(checkpoint, checkpointPrefix + ":index_pattern", this::createBankIndexPatternAsDefault);
+        if (majorVersion > 5) {
+            UpgradeCheckpoint.run(checkpoint, checkpointPrefix + ":sample_data", this::loadSampleData);
+        }
+        if (seed != null) {
+            try {
+                seed.create(fastLoad, System.currentTimeMillis() - start);
+            } catch (IOException e) {
+                // The data is uploaded, only the next runs miss the snapshot
+                System.err.println("Warning unable to create seed snapshot: " + e.getMessage());
+            }
+        }
+    }
+
+    private void restartKibana() throws IOException {
+        if (! localDeployments) {
+            CloudApi.restartKibana(deploymentId);
+        }
+    }
+
+    public void uploadBankAccountData() throws IOException {
+        String link = "https://download.elastic.co/demos/kibana/gettingstarted/accounts.zip";
+        RestApi api = new RestApi(username, password, version, upgradeVersion);
+        long start = System.currentTimeMillis();
+        FastLoad.run(api, esBaseUrl, Collections.singletonList("bank"), fastLoad, () -> {
+            BulkIndexer indexer = indexBankAccounts(api, link);
+            System.out.println("Indexed " + indexer.getIndexed() + " of " + indexer.getDocs() +
+                               " bank account documents in " + (System.currentTimeMillis() - start) + " ms");
+            System.out.println(indexer.summary());
+            RequestMetrics.recordLoad("bank", fastLoad, indexer.getIndexed(), indexer.getBytesSent(),
+                                      indexer.getElapsedMillis());
+            List<String> errors = indexer.getErrors();
+            if (! errors.isEmpty()) {
+                System.err.println("Warning " + errors.size() + " bank account documents failed, first: " +
+                                   errors.get(0));
+            }
+        });
+    }
+
+    /**
+     * Unzip straight off the download, which is cached as it is read, and index it. The indexer
+     * is returned closed, with all batches sent.
+     */
+    private BulkIndexer indexBankAccounts(RestApi api, String link) throws IOException {
+        try (ZipInputStream zipIn = new ZipInputStream(new BufferedInputStream(DatasetCache.getDefault().open(link)));
+             BulkIndexer indexer = new BulkIndexer(api, esBaseUrl + "/bank/account/_bulk")) {
+            ZipEntry entry = zipIn.getNextEntry();
+            while (entry != null) {
+                if (!entry.isDirectory() && entry.getName().endsWith(".json")) {
+                    System.out.println("Indexing: " + entry.getName());
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(zipIn, StandardCharsets.UTF_8));
+                    indexer.addAll(reader);
+                }
+                zipIn.closeEntry();
+                entry = zipIn.getNextEntry();
+            }
+            return indexer;
+        }
+    }
+
+    public void createBankIndexPatternAsDefault() throws IOException {
+        RestApi api = new RestApi(username, password, version, upgradeVersion);
+        HttpResponse response = api.post(kbnBaseUrl + "/api/saved_objects/index-pattern",
+                                         "{\"attributes\": {\"title\": \"bank*\"}}", true);
+        JSONObject json = new JSONObject(EntityUtils.toString(response.getEntity()));
+        String id = json.getString("id");
+        api.post(kbnBaseUrl + "/api/kibana/settings", "{\"changes\": {\"defaultIndex\": \"" + id + "\"}}", true);
+    }
+
+    public void createNonDefaultSpace(String name, String id) throws IOException {
+        RestApi api = new RestApi(username, password, version, upgradeVersion);
+        api.post(kbnBaseUrl + "/api/spaces/space", "{\"name\": \"" + name + "\", \"id\": \"" + id + "\"}", true);
+    }
+
+    /**
+     * Install the sample data sets in the default and the automation space. The installs are
+     * sent through AsyncRestApi, a load into the automation space waits for the space and for
+     * the load of the same data set into the default space.
+     */
+    public void loadSampleData() throws IOException {
+        List<String> dataList = new ArrayList<>(3);
+        dataList.add("ecommerce");
+        dataList.add("logs");
+        dataList.add("flights");
+        AsyncRestApi api = new RestApi(username, password, version, upgradeVersion).async();
+        Map<String, Long> timings = new ConcurrentHashMap<>();
+        List<String> failures = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        List<CompletableFuture<Void>> loads = new ArrayList<>();
+        CompletableFuture<Void> space = api.post(kbnBaseUrl + "/api/spaces/space",
+                                                 "{\"name\": \"Automation\", \"id\": \"automation\"}", true,
+                                                 DataUploader::skipResponse);
+        // Both installs of a data set write the same kibana_sample_data index, so the automation
+        // space load waits for the default one. Only different data sets load side by side.
+        for (String data : dataList) {
+            CompletableFuture<Void> defaultLoad = loadSampleData(api, "api/sample_data/" + data, timings);
+            loads.add(defaultLoad);
+            loads.add(defaultLoad.thenCombine(space, (a, b) -> b)
+                    .thenCompose(v -> loadSampleData(api, "s/automation/api/sample_data/" + data, timings)));
+        }
+        for (CompletableFuture<Void> load : loads) {
+            try {
+                load.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                failures.add(cause.getMessage());
+            }
+        }
+        System.out.println("Sample data loaded in " + (System.currentTimeMillis() - start) + " ms");
+        for (Map.Entry<String, Long> entry : new TreeMap<>(timings).entrySet()) {
+            System.out.println(String.format("  %-45s %8d ms", entry.getKey(), entry.getValue()));
+            RequestMetrics.recordTask("sample_data " + entry.getKey(), entry.getValue());
+        }
+        if (! failures.isEmpty()) {
+            throw new IOException(String.join(", ", new LinkedHashSet<>(failures)));
+        }
+    }
+
+    private CompletableFuture<Void> loadSampleData(AsyncRestApi api, String path, Map<String, Long> timings) {
+        long start = System.currentTimeMillis();
+        return api.post(kbnBaseUrl + "/" + path, "{}", true, DataUploader::skipResponse)
+                .whenComplete((result, e) -> timings.put(path, System.currentTimeMillis() - start));
+    }
+
+    private static Void skipResponse(JsonReader reader) throws IOException {
+        reader.skipValue();
+        return null;
+    }
+}
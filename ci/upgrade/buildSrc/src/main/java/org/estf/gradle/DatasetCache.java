@@ -0,0 +1,403 @@
+package org.estf.gradle;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * DatasetCache
+ *
+ * Local copy of downloaded datasets, shared by every build on the agent. Files are stored
+ * once by the sha256 of their content and found by url through a small entry holding the
+ * ETag and Last-Modified of the download, which are sent back to only fetch the file again
+ * when it changed. The least recently used files are removed once the cache is over its size.
+ * A lock file keeps builds running at the same time from writing to the cache together, downloads
+ * are streamed to the caller while they are cached.
+ *
+ * Configured with ESTF_DATASET_CACHE_DIR, ESTF_DATASET_CACHE_MAX_MB and ESTF_DATASET_CACHE_OFFLINE,
+ * offline only the cached files are used.
+ */
+public class DatasetCache {
+
+    static final long DEFAULT_MAX_MB = 2048;
+
+    private static DatasetCache defaultCache;
+
+    private final File blobDir;
+    private final File entryDir;
+    private final File lockFile;
+    private final long maxBytes;
+    private final boolean offline;
+
+    public DatasetCache(File dir, long maxBytes, boolean offline) {
+        this.blobDir = new File(dir, "blobs");
+        this.entryDir = new File(dir, "entries");
+        this.lockFile = new File(dir, "cache.lock");
+        this.maxBytes = maxBytes;
+        this.offline = offline;
+    }
+
+    public static synchronized DatasetCache getDefault() {
+        if (defaultCache == null) {
+            String dir = System.getenv("ESTF_DATASET_CACHE_DIR");
+            if (dir == null || dir.trim().isEmpty()) {
+                dir = System.getProperty("user.home") + File.separator + ".estf" + File.separator + "datasets";
+            }
+            long maxMb = RetryPolicy.getEnvInt("ESTF_DATASET_CACHE_MAX_MB", (int) DEFAULT_MAX_MB);
+            boolean offline = Boolean.parseBoolean(System.getenv("ESTF_DATASET_CACHE_OFFLINE"));
+            defaultCache = new DatasetCache(new File(dir.trim()), maxMb * 1024 * 1024, offline);
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Stream with the current content of the url. A cached copy is read when it is still current,
+     * else the download is written to the cache while it is read, so the caller does not wait for
+     * the whole file. The download is cached once it is complete, if the caller closes the stream
+     * early the rest is read into the cache first.
+     */
+    public InputStream open(String url) throws IOException {
+        mkdirs(blobDir);
+        mkdirs(entryDir);
+        File entryFile = new File(entryDir, sha256(url.getBytes(StandardCharsets.UTF_8)) + ".json");
+        JSONObject entry = locked(() -> readEntry(entryFile));
+        File cached = entry != null ? new File(blobDir, entry.getString("sha256")) : null;
+        if (cached != null && ! cached.isFile()) {
+            cached = null;
+        }
+        if (offline) {
+            if (cached == null) {
+                throw new IOException("FAILED! Offline and not in dataset cache: " + url);
+            }
+            System.out.println("Dataset cache (offline): " + url);
+            return openCached(cached);
+        }
+
+        HttpGet request = new HttpGet(url);
+        if (cached != null) {
+            if (entry.has("etag")) {
+                request.setHeader(HttpHeaders.IF_NONE_MATCH, entry.getString("etag"));
+            }
+            if (entry.has("last_modified")) {
+                request.setHeader(HttpHeaders.IF_MODIFIED_SINCE, entry.getString("last_modified"));
+            }
+        }
+        long start = System.nanoTime();
+        CloseableHttpResponse response;
+        try {
+            response = HttpClientPool.execute(request);
+        } catch (IOException e) {
+            if (cached == null || e instanceof InterruptedIOException) {
+                throw e;
+            }
+            System.err.println("Warning unable to validate " + url + ", using cached copy: " + e.getMessage());
+            return openCached(cached);
+        }
+        boolean streaming = false;
+        try {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode == 304 && cached != null) {
+                RequestMetrics.record(request, statusCode, start, 0);
+                System.out.println("Dataset cache hit: " + url);
+                return openCached(cached);
+            }
+            if (statusCode != 200) {
+                RequestMetrics.record(request, statusCode, start, 0);
+                EntityUtils.consume(response.getEntity());
+                if (cached != null && statusCode >= 500) {
+                    System.err.println("Warning " + url + " returned " + statusCode + ", using cached copy");
+                    return openCached(cached);
+                }
+                throw new IOException("FAILED! GET: " + response.getStatusLine() + " " + url);
+            }
+            InputStream download = new Download(url, entryFile, cached != null, request, response, start);
+            streaming = true;
+            return download;
+        } finally {
+            if (! streaming) {
+                response.close();
+            }
+        }
+    }
+
+    /**
+     * Open a cached file, while holding the lock so it is not evicted before it is open
+     */
+    private InputStream openCached(File blob) throws IOException {
+        return locked(() -> {
+            touch(blob);
+            return Files.newInputStream(blob.toPath());
+        });
+    }
+
+    private interface LockedAction<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * Run with the cache locked, one writer per jvm and the file lock for other processes
+     */
+    private <T> T locked(LockedAction<T> action) throws IOException {
+        synchronized (DatasetCache.class) {
+            try (RandomAccessFile raf = new RandomAccessFile(lockFile, "rw");
+                 FileChannel channel = raf.getChannel()) {
+                FileLock lock = channel.lock();
+                try {
+                    return action.run();
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * The body of a download, copied to a temporary file as it is read. Closing it reads what
+     * is left, moves the file to its content address and writes the entry of the url. A body
+     * that fails to download is not cached.
+     */
+    private class Download extends FilterInputStream {
+        private final String url;
+        private final File entryFile;
+        private final boolean refresh;
+        private final HttpGet request;
+        private final CloseableHttpResponse response;
+        private final long start;
+        private final File tmp;
+        private final MessageDigest digest = newDigest();
+        private final OutputStream out;
+        private boolean failed = false;
+        private boolean closed = false;
+
+        Download(String url, File entryFile, boolean refresh, HttpGet request, CloseableHttpResponse response,
+                 long start) throws IOException {
+            super(response.getEntity().getContent());
+            this.url = url;
+            this.entryFile = entryFile;
+            this.refresh = refresh;
+            this.request = request;
+            this.response = response;
+            this.start = start;
+            this.tmp = File.createTempFile("download", ".tmp", blobDir);
+            this.out = new DigestOutputStream(Files.newOutputStream(tmp.toPath()), digest);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n;
+            try {
+                n = in.read(b, off, len);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+            if (n > 0) {
+                out.write(b, off, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(8192, Math.max(1, n))];
+            long skipped = 0;
+            while (skipped < n) {
+                int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+                if (read == -1) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (! failed) {
+                    byte[] buffer = new byte[8192];
+                    while (read(buffer, 0, buffer.length) != -1) {
+                        // the rest of the body goes to the cache only
+                    }
+                }
+                out.close();
+                if (! failed) {
+                    commit();
+                }
+            } catch (IOException e) {
+                System.err.println("Warning unable to cache " + url + ": " + e.getMessage());
+            } finally {
+                out.close();
+                response.close();
+                Files.deleteIfExists(tmp.toPath());
+            }
+        }
+
+        private void commit() throws IOException {
+            File blob = new File(blobDir, toHex(digest.digest()));
+            long size = tmp.length();
+            RequestMetrics.record(request, 200, start, size);
+            JSONObject newEntry = new JSONObject()
+                    .put("url", url)
+                    .put("sha256", blob.getName())
+                    .put("size", size);
+            Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+            if (etag != null) {
+                newEntry.put("etag", etag.getValue());
+            }
+            Header lastModified = response.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+            if (lastModified != null) {
+                newEntry.put("last_modified", lastModified.getValue());
+            }
+            locked(() -> {
+                if (! blob.isFile()) {
+                    Files.move(tmp.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                }
+                writeEntry(entryFile, newEntry);
+                touch(blob);
+                evict(blob);
+                return null;
+            });
+            System.out.println("Dataset cache " + (refresh ? "refresh" : "miss") + ": " + url +
+                               " (" + size + " bytes)");
+        }
+    }
+
+    /**
+     * Remove the least recently used files until the cache fits, never the one just used
+     */
+    private void evict(File keep) throws IOException {
+        File[] blobs = blobDir.listFiles(f -> f.isFile() && ! f.getName().endsWith(".tmp"));
+        if (blobs == null) {
+            return;
+        }
+        long total = 0;
+        for (File blob : blobs) {
+            total += blob.length();
+        }
+        if (total <= maxBytes) {
+            return;
+        }
+        List<File> lru = new ArrayList<>(Arrays.asList(blobs));
+        lru.sort(Comparator.comparingLong(File::lastModified));
+        List<String> removed = new ArrayList<>();
+        for (File blob : lru) {
+            if (total <= maxBytes) {
+                break;
+            }
+            if (blob.equals(keep)) {
+                continue;
+            }
+            long size = blob.length();
+            if (blob.delete()) {
+                total -= size;
+                removed.add(blob.getName());
+                System.out.println("Dataset cache evicted: " + blob.getName() + " (" + size + " bytes)");
+            }
+        }
+        File[] entries = entryDir.listFiles(f -> f.getName().endsWith(".json"));
+        if (entries == null || removed.isEmpty()) {
+            return;
+        }
+        for (File entryFile : entries) {
+            JSONObject entry = readEntry(entryFile);
+            if (entry == null || removed.contains(entry.optString("sha256"))) {
+                Files.deleteIfExists(entryFile.toPath());
+            }
+        }
+    }
+
+    private static JSONObject readEntry(File entryFile) {
+        if (! entryFile.isFile()) {
+            return null;
+        }
+        try {
+            JSONObject entry = new JSONObject(new String(Files.readAllBytes(entryFile.toPath()),
+                                                         StandardCharsets.UTF_8));
+            return entry.has("sha256") ? entry : null;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Warning ignoring unreadable dataset cache entry: " + entryFile);
+            return null;
+        }
+    }
+
+    private static void writeEntry(File entryFile, JSONObject entry) throws IOException {
+        File tmp = new File(entryFile.getPath() + ".tmp");
+        Files.write(tmp.toPath(), entry.toString(2).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp.toPath(), entryFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void touch(File file) {
+        if (! file.setLastModified(System.currentTimeMillis())) {
+            System.err.println("Warning unable to update access time of: " + file);
+        }
+    }
+
+    static void mkdirs(File dir) {
+        if (! dir.exists()) {
+            if (! dir.mkdirs() && ! dir.isDirectory()) {
+                throw new SecurityException("Unable to mkdir: " + dir);
+            }
+        }
+    }
+
+    static String sha256(byte[] data) {
+        return toHex(newDigest().digest(data));
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error("SHA-256 not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,565 @@
+package org.estf.gradle;
+
+import co.elastic.cloud.api.client.generated.DeploymentsApi;
+import co.elastic.cloud.api.model.generated.*;
+import co.elastic.cloud.api.util.Waiter;
+import com.bettercloud.vault.VaultException;
+import io.swagger.client.ApiClient;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * DeploymentCreator
+ *
+ * Creates a deployment, leases one from the deployment pool or resumes the one of a checkpoint,
+ * and writes its properties file. Shared by the CreateEssDeployment task and UpgradeEssPaths.
+ */
+public class DeploymentCreator {
+
+    public String stackVersion;
+    public String elasticsearchUserSettings;
+    public String kibanaUserSettings;
+    public boolean mlNode = false;
+    public boolean ingestNode = false;
+    public boolean apmNode = false;
+    public boolean enterpriseSearchNode = false;
+    public int poolSize = 0;
+    public boolean localDeployments = false;
+
+    // Resume on the deployment of this checkpoint while it runs, see UpgradeCheckpoint
+    public String checkpointFile;
+
+    // The upgrade path, a checkpoint of another path is not resumed
+    public String upgradePath;
+
+    private String deploymentId;
+    private String elasticsearchClusterId;
+    private String kibanaClusterId;
+    private String propertiesFile;
+    private Properties properties;
+
+    private String dataRegion;
+    private String esInstanceCfg;
+    private String kbnInstanceCfg;
+    private String mlInstanceCfg;
+    private String ingestInstanceCfg;
+    private String apmInstanceCfg;
+    private String enterpriseSearchInstanceCfg;
+
+    public void run() throws IOException, VaultException {
+        if (stackVersion == null) {
+            throw new Error(this.getClass().getSimpleName() + ": stackVersion is required input");
+        }
+
+        UpgradeCheckpoint checkpoint = checkpointFile != null ? UpgradeCheckpoint.get(new File(checkpointFile)) : null;
+        if (checkpoint != null && resumeDeployment(checkpoint)) {
+            return;
+        }
+        // Deployments of failed runs no rerun resumed, also when no job fills the pool
+        DeploymentPool.Provisioner provisioner = getProvisioner();
+        DeploymentPool.getDefault().reapKept(provisioner);
+
+        Properties properties;
+        if (poolSize > 0) {
+            properties = leaseDeployment(provisioner);
+        } else {
+            CloudApi cloudApi = new CloudApi();
+            ApiClient apiClient = cloudApi.getApiClient();
+            setInstanceConfiguration(cloudApi);
+            DeploymentsApi deploymentsApi = new DeploymentsApi(apiClient);
+            DeploymentCreateResponse response = createDeployment(cloudApi, deploymentsApi);
+            properties = toProperties(response);
+        }
+        writePropertiesFile(properties);
+        if (checkpoint != null) {
+            checkpoint.start(properties, upgradePath != null ? upgradePath : stackVersion);
+        }
+    }
+
+    /**
+     * Shut down deployments kept too long in the pool and request new ones until the pool of this
+     * stack version and topology has poolSize of them
+     */
+    public void fill() throws IOException, VaultException {
+        if (stackVersion == null) {
+            throw new Error(this.getClass().getSimpleName() + ": stackVersion is required input");
+        }
+        if (poolSize <= 0) {
+            throw new Error(this.getClass().getSimpleName() + ": poolSize is required input");
+        }
+
+        DeploymentPool pool = DeploymentPool.getDefault();
+        DeploymentPool.Provisioner provisioner = getProvisioner();
+        pool.reap(provisioner);
+        String key = getPoolKey();
+        int requested = pool.refill(key, poolSize, provisioner);
+        System.out.println("Deployment pool " + key + ": requested " + requested + " deployments, pool size " +
+                           poolSize);
+    }
+
+    /**
+     * Take over the deployment of the checkpoint when it still runs, else shut it down
+     */
+    private boolean resumeDeployment(UpgradeCheckpoint checkpoint) throws IOException, VaultException {
+        Properties properties = checkpoint.getDeploymentProperties();
+        String path = upgradePath != null ? upgradePath : stackVersion;
+        String id = properties != null ? properties.getProperty("deployment_id") : null;
+        if (id == null) {
+            checkpoint.delete();
+            return false;
+        }
+        DeploymentPool.Provisioner provisioner = getProvisioner();
+        boolean running;
+        try {
+            running = path.equals(checkpoint.getPath()) && ! checkpoint.isStale() && provisioner.isRunning(id);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Warning unable to check deployment " + id + ": " + e.getMessage());
+            running = false;
+        }
+        if (! running) {
+            System.out.println("Checkpoint deployment " + id + " can not be resumed, creating a new one");
+            try {
+                provisioner.shutdown(id);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Warning unable to shut down " + id + ": " + e.getMessage());
+            }
+            DeploymentPool.getDefault().release(id);
+            checkpoint.delete();
+            return false;
+        }
+        // Taken over, it is not reaped while this run uses it
+        DeploymentPool.getDefault().release(id);
+        System.out.println("Resuming deployment " + id + " at hop " + checkpoint.getHop() + ", completed steps: " +
+                           checkpoint.getSteps());
+        writePropertiesFile(properties);
+        return true;
+    }
+
+    /**
+     * Take a deployment from the pool, or create one when the pool is empty, and top the pool up
+     */
+    private Properties leaseDeployment(DeploymentPool.Provisioner provisioner) throws IOException {
+        DeploymentPool pool = DeploymentPool.getDefault();
+        String key = getPoolKey();
+        long start = System.currentTimeMillis();
+        DeploymentPool.Lease lease = pool.lease(key, provisioner);
+
+        // Refill while this job waits for its deployment or goes on with its tests
+        CompletableFuture<Integer> refill = CompletableFuture.supplyAsync(() -> {
+            try {
+                pool.reap(provisioner);
+                return pool.refill(key, poolSize, provisioner);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        Properties properties = lease != null ? lease.properties : provisioner.create();
+        String id = properties.getProperty("deployment_id");
+        if (lease == null || ! lease.running) {
+            provisioner.awaitRunning(id);
+        }
+        long millis = System.currentTimeMillis() - start;
+        System.out.println("Deployment " + id + (lease != null ? " leased from pool " : " created for pool ") +
+                           key + " in " + millis + " ms");
+        RequestMetrics.recordTask(lease != null ? "deployment lease" : "deployment create", millis);
+        properties.remove(DeploymentPool.KEY);
+        properties.remove(DeploymentPool.CREATED);
+
+        try {
+            refill.join();
+        } catch (CompletionException e) {
+            System.err.println("Warning unable to refill deployment pool " + key + ": " + e.getCause().getMessage());
+        }
+        return properties;
+    }
+
+    DeploymentPool.Provisioner getProvisioner() throws IOException, VaultException {
+        if (localDeployments) {
+            return new LocalDeployments(LocalDeployments.getDefaultDir());
+        }
+        CloudApi cloudApi = new CloudApi();
+        setInstanceConfiguration(cloudApi);
+        return new EssProvisioner(cloudApi, new DeploymentsApi(cloudApi.getApiClient()));
+    }
+
+    /**
+     * Pool folder of the deployments this task creates: version, topology, region and settings
+     */
+    String getPoolKey() {
+        StringBuilder key = new StringBuilder(stackVersion);
+        if (mlNode) {
+            key.append("-ml");
+        }
+        if (ingestNode) {
+            key.append("-ingest");
+        }
+        if (apmNode) {
+            key.append("-apm");
+        }
+        if (enterpriseSearchNode) {
+            key.append("-ens");
+        }
+        key.append("-").append(dataRegion != null ? dataRegion : "local");
+        String settings = (elasticsearchUserSettings != null ? elasticsearchUserSettings : "") + "\n" +
+                          (kibanaUserSettings != null ? kibanaUserSettings : "");
+        if (! settings.trim().isEmpty()) {
+            key.append("-").append(DatasetCache.sha256(settings.getBytes(StandardCharsets.UTF_8)), 0, 12);
+        }
+        return key.toString().replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    private String[] getResources() {
+        List<String> resources = new ArrayList<>(Arrays.asList(CloudApi.ELASTICSEARCH, CloudApi.KIBANA));
+
+        if (apmNode) {
+            resources.add(CloudApi.APM);
+        }
+
+        if (enterpriseSearchNode) {
+            resources.add(CloudApi.ENTERPRISE_SEARCH);
+        }
+
+        return resources.toArray(new String[0]);
+    }
+
+    private class EssProvisioner implements DeploymentPool.Provisioner {
+        private final CloudApi cloudApi;
+        private final DeploymentsApi deploymentsApi;
+
+        EssProvisioner(CloudApi cloudApi, DeploymentsApi deploymentsApi) {
+            this.cloudApi = cloudApi;
+            this.deploymentsApi = deploymentsApi;
+        }
+
+        @Override
+        public Properties create() {
+            return toProperties(requestDeployment(cloudApi, deploymentsApi));
+        }
+
+        @Override
+        public boolean isRunning(String deploymentId) {
+            return cloudApi.isDeploymentRunning(deploymentsApi, deploymentId);
+        }
+
+        @Override
+        public void awaitRunning(String deploymentId) {
+            Waiter.setWait(Duration.ofMinutes(20));
+            cloudApi.waitForResources(deploymentsApi, deploymentId, getResources());
+        }
+
+        @Override
+        public void shutdown(String deploymentId) {
+            deploymentsApi.shutdownDeployment(deploymentId, true, true);
+        }
+    }
+
+    public String getDeploymentId() {
+        return deploymentId;
+    }
+
+    public String getElasticsearchClusterId() {
+        return elasticsearchClusterId;
+    }
+
+    public String getKibanaClusterId() {
+        return kibanaClusterId;
+    }
+
+    public String getPropertiesFile() {
+        return propertiesFile;
+    }
+
+    /**
+     * Urls and credentials of the deployment, as written to the properties file
+     */
+    public Properties getProperties() {
+        return properties;
+    }
+
+    private void setInstanceConfiguration(CloudApi cloudApi) {
+        esInstanceCfg = "aws.data.highio.i3";
+        kbnInstanceCfg = "aws.kibana.r5d";
+        mlInstanceCfg = "aws.ml.m5";
+        ingestInstanceCfg = "aws.coordinating.m5";
+        apmInstanceCfg = "aws.apm.r5d";
+        enterpriseSearchInstanceCfg = "aws.enterprisesearch.m5d";
+        dataRegion = cloudApi.getEnvRegion();
+        if (dataRegion != null) {
+            if (dataRegion.contains("gcp")) {
+                esInstanceCfg = "gcp.data.highio.1";
+                kbnInstanceCfg = "gcp.kibana.1";
+                mlInstanceCfg = "gcp.ml.1";
+                ingestInstanceCfg = "gcp.coordinating.1";
+                apmInstanceCfg = "gcp.apm.1";
+                enterpriseSearchInstanceCfg = "gcp.enterprisesearch.1d";
+            } else if (dataRegion.contains("azure")) {
+                esInstanceCfg = "azure.data.highio.l32sv23";
+                kbnInstanceCfg = "azure.kibana.e32sv3";
+                mlInstanceCfg = "azure.ml.d64sv3";
+                ingestInstanceCfg = "azure.coordinating.d64sv3";
+                apmInstanceCfg = "azure.apm.e32sv3";
+                enterpriseSearchInstanceCfg = "azure.enterprisesearch.d64sv3";
+            }
+        }
+    }
+
+    private Properties toProperties(DeploymentCreateResponse response) {
+        String esUser = "";
+        String esPassword = "";
+        String region = "";
+        String elasticsearchClusterId = null;
+        String kibanaClusterId = null;
+
+        List<DeploymentResource> deploymentResourceList =  response.getResources();
+        for (DeploymentResource resource : deploymentResourceList) {
+            String kind = resource.getKind();
+            if (kind.equals("elasticsearch")) {
+                ClusterCredentials clusterCredentials = resource.getCredentials();
+                esUser = clusterCredentials.getUsername();
+                esPassword = clusterCredentials.getPassword();
+                region = resource.getRegion();
+                elasticsearchClusterId = resource.getId();
+            } else if (kind.equals("kibana")) {
+                kibanaClusterId = resource.getId();
+            }
+        }
+
+        String domain = "foundit.no";
+        String port = "9243";
+        String provider = "aws.staging";
+        if (region.contains("gcp")) {
+            provider = "gcp";
+            region = region.replace("gcp-","");
+        } else if (region.contains("azure")) {
+            provider = "staging.azure";
+            region = region.replace("azure-","");
+        } else if (region.contains("aws-eu-central-1")) {
+            provider = "aws";
+            region = "eu-central-1";
+        }
+
+        String elasticsearch_url = String.format("https://%s.%s.%s.%s:%s", elasticsearchClusterId,
+                region, provider, domain, port);
+        String kibana_url = String.format("https://%s.%s.%s.%s:%s", kibanaClusterId,
+                region, provider, domain, port);
+
+        Properties properties = new Properties();
+        properties.setProperty("deployment_id", response.getId());
+        properties.setProperty("elasticsearch_cluster_id", elasticsearchClusterId);
+        properties.setProperty("es_username", esUser);
+        properties.setProperty("es_password", esPassword);
+        properties.setProperty("kibana_cluster_id", kibanaClusterId);
+        properties.setProperty("elasticsearch_url", elasticsearch_url);
+        properties.setProperty("kibana_url", kibana_url);
+        return properties;
+    }
+
+    private void writePropertiesFile(Properties properties) {
+        this.properties = properties;
+        deploymentId = properties.getProperty("deployment_id");
+        elasticsearchClusterId = properties.getProperty("elasticsearch_cluster_id");
+        kibanaClusterId = properties.getProperty("kibana_cluster_id");
+        try {
+            propertiesFile = DeploymentFile.getFilename(deploymentId);
+            File file = new File(propertiesFile);
+            FileOutputStream fileOut = new FileOutputStream(file);
+            properties.store(fileOut, "Cloud Cluster Info");
+            fileOut.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private TopologySize getTopologySize() {
+        return getTopologySize(1024);
+    }
+
+    private TopologySize getTopologySize(int size) {
+        return new TopologySize()
+                .value(size)
+                .resource(TopologySize.ResourceEnum.MEMORY);
+    }
+
+    private ElasticsearchPayload getElasticsearchPayload(CloudApi api) {
+        final String deploymentTemplate = "aws-io-optimized";
+
+        TopologySize topologySize = getTopologySize();
+
+        ElasticsearchNodeType esNodeType = new ElasticsearchNodeType().data(true).master(true);
+        ElasticsearchNodeType ingestNodeType = new ElasticsearchNodeType().ingest(true);
+        ElasticsearchNodeType mlNodeType = new ElasticsearchNodeType().ml(true);
+
+        ElasticsearchClusterTopologyElement esTopology = new ElasticsearchClusterTopologyElement()
+                .instanceConfigurationId(esInstanceCfg)
+                .nodeType(esNodeType)
+                .zoneCount(1)
+                .size(topologySize);
+
+        ElasticsearchClusterTopologyElement ingestTopology = new ElasticsearchClusterTopologyElement()
+                .instanceConfigurationId(ingestInstanceCfg)
+                .nodeType(ingestNodeType)
+                .zoneCount(1)
+                .size(topologySize);
+
+        ElasticsearchClusterTopologyElement mlTopology = new ElasticsearchClusterTopologyElement()
+                .instanceConfigurationId(mlInstanceCfg)
+                .nodeType(mlNodeType)
+                .zoneCount(1)
+                .size(topologySize);
+
+        ElasticsearchConfiguration esCfg = new ElasticsearchConfiguration()
+                .version(stackVersion);
+
+        if (elasticsearchUserSettings != null) {
+            esCfg.userSettingsYaml(elasticsearchUserSettings);
+        }
+
+        DeploymentTemplateReference templateRef = new DeploymentTemplateReference()
+                .id(deploymentTemplate);
+
+        ElasticsearchClusterPlan plan = new ElasticsearchClusterPlan()
+                .elasticsearch(esCfg)
+                .deploymentTemplate(templateRef);
+
+        if (mlNode && ingestNode) {
+            plan.clusterTopology(Arrays.asList(esTopology, mlTopology, ingestTopology));
+        } else if (mlNode) {
+            plan.clusterTopology(Arrays.asList(esTopology, mlTopology));
+        } else if (ingestNode) {
+            plan.clusterTopology(Arrays.asList(esTopology, ingestTopology));
+        } else {
+            plan.clusterTopology(Collections.singletonList(esTopology));
+        }
+
+        return new ElasticsearchPayload()
+                .plan(plan)
+                .region(dataRegion)
+                .refId(api.getEsRefId());
+    }
+
+    private KibanaPayload getKibanaPayload(CloudApi api) {
+        TopologySize topologySize = getTopologySize();
+
+        int kibanaZone;
+        try {
+            kibanaZone = Integer.parseInt(System.getenv("ESTF_CLOUD_KIBANA_ZONE"));
+        } catch (NumberFormatException e) {
+            kibanaZone = 1;
+        }
+
+        KibanaClusterTopologyElement kbnTopology = new KibanaClusterTopologyElement()
+                .instanceConfigurationId(kbnInstanceCfg)
+                .zoneCount(kibanaZone)
+                .size(topologySize);
+
+        KibanaConfiguration kbnCfg = new KibanaConfiguration()
+                .version(stackVersion);
+
+        if (kibanaUserSettings != null) {
+            kbnCfg.userSettingsYaml(kibanaUserSettings);
+        }
+
+        KibanaClusterPlan kbnPlan = new KibanaClusterPlan()
+                .kibana(kbnCfg)
+                .clusterTopology(Collections.singletonList(kbnTopology));
+
+        return new KibanaPayload()
+                .elasticsearchClusterRefId(api.getEsRefId())
+                .refId(api.getKbRefId())
+                .plan(kbnPlan)
+                .region(dataRegion);
+    }
+
+    private ApmPayload getApmPayload(CloudApi api) {
+        TopologySize topologySize = getTopologySize(512);
+
+        ApmTopologyElement apmTopology = new ApmTopologyElement()
+                .instanceConfigurationId(apmInstanceCfg)
+                .zoneCount(1)
+                .size(topologySize);
+
+        ApmConfiguration apmCfg = new ApmConfiguration()
+                .version(stackVersion);
+
+        ApmPlan apmPlan = new ApmPlan()
+                .apm(apmCfg)
+                .clusterTopology(Collections.singletonList(apmTopology));
+
+        return new ApmPayload()
+                .elasticsearchClusterRefId(api.getEsRefId())
+                .refId(api.getApmRefId())
+                .plan(apmPlan)
+                .region(dataRegion);
+    }
+
+    private EnterpriseSearchPayload getEnterpriseSearchPayload(CloudApi api) {
+        TopologySize topologySize = getTopologySize(2048);
+
+        EnterpriseSearchNodeTypes enterpriseSearchNodeTypes = new EnterpriseSearchNodeTypes()
+                .appserver(true)
+                .worker(true)
+                .connector(true);
+
+        EnterpriseSearchTopologyElement enterpriseSearchTopologyElementTopology = new EnterpriseSearchTopologyElement()
+                .instanceConfigurationId(enterpriseSearchInstanceCfg)
+                .nodeType(enterpriseSearchNodeTypes)
+                .zoneCount(2)
+                .size(topologySize);
+
+        EnterpriseSearchConfiguration ensCfg = new EnterpriseSearchConfiguration()
+                .version(stackVersion);
+
+        EnterpriseSearchPlan ensPlan = new EnterpriseSearchPlan()
+                .enterpriseSearch(ensCfg)
+                .clusterTopology(Collections.singletonList(enterpriseSearchTopologyElementTopology));
+
+        return new EnterpriseSearchPayload()
+                .elasticsearchClusterRefId(api.getEsRefId())
+                .refId(api.getEnsRefId())
+                .plan(ensPlan)
+                .region(dataRegion);
+    }
+
+    private DeploymentCreateResponse createDeployment(CloudApi cloudApi, DeploymentsApi deploymentsApi) {
+
+        DeploymentCreateResponse response = requestDeployment(cloudApi, deploymentsApi);
+
+        deploymentId = response.getId();
+
+        Waiter.setWait(Duration.ofMinutes(20));
+        cloudApi.waitForResources(deploymentsApi, deploymentId, getResources());
+
+        return response;
+    }
+
+    private DeploymentCreateResponse requestDeployment(CloudApi cloudApi, DeploymentsApi deploymentsApi) {
+
+        DeploymentCreateResources deploymentCreateResources = new DeploymentCreateResources()
+                .addElasticsearchItem(getElasticsearchPayload(cloudApi))
+                .addKibanaItem(getKibanaPayload(cloudApi));
+
+        if (apmNode) {
+            deploymentCreateResources.addApmItem(getApmPayload(cloudApi));
+        }
+
+        if (enterpriseSearchNode) {
+            deploymentCreateResources.addEnterpriseSearchItem(getEnterpriseSearchPayload(cloudApi));
+        }
+
+        return deploymentsApi.createDeployment(
+                new DeploymentCreateRequest()
+                        .name("ESTF_Deployment__" + UUID.randomUUID().toString())
+                        .resources(deploymentCreateResources),
+                "estf_request_id_" + UUID.randomUUID().toString(),
+                false);
+    }
+}
@@ -0,0 +1,337 @@
+package org.estf.gradle;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * DeploymentPool
+ *
+ * Deployments created ahead of time, so a job can take one that already runs instead of
+ * waiting for a new one to start. The pool is a directory shared by the jobs on the agent,
+ * with a folder per stack version and topology. A deployment is pending once requested,
+ * ready once it runs and leased when a job takes it. Every move is a rename, so two jobs
+ * never take the same deployment. Jobs top the pool up after taking from it, and
+ * deployments kept for too long are shut down.
+ *
+ * The deployment of a failed run with a checkpoint is kept for a rerun to resume, see
+ * UpgradeCheckpoint. It is recorded in the kept folder, so it is reaped as well when no rerun
+ * takes it over.
+ *
+ * Configured with ESTF_DEPLOYMENT_POOL_DIR, default ~/.estf/deployment-pool. Ready and pending
+ * deployments are reaped after ESTF_DEPLOYMENT_POOL_MAX_AGE_HOURS (default 24), pending ones that
+ * do not run after ESTF_DEPLOYMENT_POOL_PENDING_MINUTES (default 60), leases after
+ * ESTF_DEPLOYMENT_POOL_LEASE_HOURS (default 12) and kept ones once their checkpoint is too old
+ * to resume, after ESTF_CHECKPOINT_MAX_HOURS (default 12).
+ */
+public class DeploymentPool {
+
+    static final String PENDING = "pending";
+    static final String READY = "ready";
+    static final String LEASED = "leased";
+    static final String KEPT = "kept";
+    static final String CREATED = "pool_created";
+    static final String KEY = "pool_key";
+    static final int DEFAULT_MAX_AGE_HOURS = 24;
+    static final int DEFAULT_PENDING_MINUTES = 60;
+    static final int DEFAULT_LEASE_HOURS = 12;
+
+    private static DeploymentPool defaultPool;
+
+    private final File dir;
+    private final long maxAgeMs;
+    private final long pendingMs;
+    private final long leaseMs;
+    private final long keptMs;
+
+    /**
+     * Creates, watches and removes the deployments of one pool folder
+     */
+    public interface Provisioner {
+        /**
+         * Request a new deployment without waiting for it, the properties hold its deployment_id
+         */
+        Properties create() throws IOException;
+
+        boolean isRunning(String deploymentId) throws IOException;
+
+        void awaitRunning(String deploymentId) throws IOException;
+
+        void shutdown(String deploymentId) throws IOException;
+    }
+
+    public static class Lease {
+        public final Properties properties;
+        public final boolean running;
+
+        Lease(Properties properties, boolean running) {
+            this.properties = properties;
+            this.running = running;
+        }
+
+        public String getDeploymentId() {
+            return properties.getProperty("deployment_id");
+        }
+    }
+
+    public DeploymentPool(File dir, long maxAgeMs, long pendingMs, long leaseMs, long keptMs) {
+        this.dir = dir;
+        this.maxAgeMs = maxAgeMs;
+        this.pendingMs = pendingMs;
+        this.leaseMs = leaseMs;
+        this.keptMs = keptMs;
+    }
+
+    public static synchronized DeploymentPool getDefault() {
+        if (defaultPool == null) {
+            String dir = System.getenv("ESTF_DEPLOYMENT_POOL_DIR");
+            if (dir == null || dir.trim().isEmpty()) {
+                dir = System.getProperty("user.home") + File.separator + ".estf" + File.separator + "deployment-pool";
+            }
+            defaultPool = new DeploymentPool(new File(dir.trim()),
+                    RetryPolicy.getEnvInt("ESTF_DEPLOYMENT_POOL_MAX_AGE_HOURS", DEFAULT_MAX_AGE_HOURS) * 3600000L,
+                    RetryPolicy.getEnvInt("ESTF_DEPLOYMENT_POOL_PENDING_MINUTES", DEFAULT_PENDING_MINUTES) * 60000L,
+                    RetryPolicy.getEnvInt("ESTF_DEPLOYMENT_POOL_LEASE_HOURS", DEFAULT_LEASE_HOURS) * 3600000L,
+                    RetryPolicy.getEnvInt("ESTF_CHECKPOINT_MAX_HOURS", UpgradeCheckpoint.DEFAULT_MAX_HOURS) * 3600000L);
+        }
+        return defaultPool;
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    /**
+     * Take a deployment for the key, a running one if there is any, else the oldest pending
+     * one, which still has to be waited for. Null when the pool is empty.
+     */
+    public Lease lease(String key, Provisioner provisioner) throws IOException {
+        promote(key, provisioner);
+        long oldest = System.currentTimeMillis() - maxAgeMs;
+        for (String state : Arrays.asList(READY, PENDING)) {
+            for (File file : list(key, state)) {
+                if (file.lastModified() < oldest) {
+                    // Left for the reaper
+                    continue;
+                }
+                File leased = new File(folder(key, LEASED), file.getName());
+                try {
+                    Files.move(file.toPath(), leased.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (NoSuchFileException e) {
+                    // Taken by another job
+                    continue;
+                }
+                // The lease starts now, not when the deployment was created
+                touch(leased);
+                Properties properties = read(leased);
+                System.out.println("Deployment pool " + key + ": leased " + state + " deployment " +
+                                   properties.getProperty("deployment_id"));
+                return new Lease(properties, state.equals(READY));
+            }
+        }
+        System.out.println("Deployment pool " + key + ": empty");
+        return null;
+    }
+
+    /**
+     * Request deployments until the key has size ready and pending ones, returns how many were requested
+     */
+    public int refill(String key, int size, Provisioner provisioner) throws IOException {
+        return locked(key, () -> {
+            int missing = size - list(key, READY).size() - list(key, PENDING).size();
+            int requested = 0;
+            for (; requested < missing; requested++) {
+                Properties properties = provisioner.create();
+                properties.setProperty(KEY, key);
+                properties.setProperty(CREATED, String.valueOf(System.currentTimeMillis()));
+                write(new File(folder(key, PENDING), properties.getProperty("deployment_id") + ".properties"),
+                      properties);
+                System.out.println("Deployment pool " + key + ": requested deployment " +
+                                   properties.getProperty("deployment_id"));
+            }
+            return requested;
+        });
+    }
+
+    /**
+     * Record a deployment kept for the rerun of a failed run, it is reaped when no rerun
+     * resumes it in time. Recording it again restarts its time.
+     */
+    public void keep(String deploymentId) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("deployment_id", deploymentId);
+        properties.setProperty(CREATED, String.valueOf(System.currentTimeMillis()));
+        File kept = new File(keptFolder(), deploymentId + ".properties");
+        write(kept, properties);
+        touch(kept);
+        System.out.println("Deployment pool: keeping deployment " + deploymentId + " for its checkpoint");
+    }
+
+    /**
+     * End the lease of a deployment that was shut down, or that a rerun took over
+     */
+    public void release(String deploymentId) {
+        List<File> released = new ArrayList<>();
+        released.add(new File(new File(dir, KEPT), deploymentId + ".properties"));
+        for (File key : keys()) {
+            released.add(new File(new File(key, LEASED), deploymentId + ".properties"));
+        }
+        for (File file : released) {
+            if (file.isFile() && ! file.delete()) {
+                System.err.println("Warning unable to delete file: " + file);
+            }
+        }
+    }
+
+    /**
+     * Shut down deployments that were kept too long in any folder of the pool
+     */
+    public void reap(Provisioner provisioner) {
+        long now = System.currentTimeMillis();
+        for (File key : keys()) {
+            promote(key.getName(), provisioner);
+            reap(key.getName(), READY, list(key.getName(), READY), now - maxAgeMs, provisioner);
+            reap(key.getName(), PENDING, list(key.getName(), PENDING), now - Math.min(maxAgeMs, pendingMs),
+                 provisioner);
+            reap(key.getName(), LEASED, list(key.getName(), LEASED), now - leaseMs, provisioner);
+        }
+        reapKept(provisioner);
+    }
+
+    /**
+     * Shut down kept deployments no rerun resumed in time
+     */
+    public void reapKept(Provisioner provisioner) {
+        reap("checkpoints", KEPT, list(keptFolder()), System.currentTimeMillis() - keptMs, provisioner);
+    }
+
+    private void reap(String key, String state, List<File> files, long before, Provisioner provisioner) {
+        for (File file : files) {
+            if (file.lastModified() >= before) {
+                continue;
+            }
+            // Removed first, a job leasing it at the same time either gets it or does not see it
+            if (! file.delete()) {
+                continue;
+            }
+            String deploymentId = file.getName().replace(".properties", "");
+            System.out.println("Deployment pool " + key + ": reaping " + state + " deployment " + deploymentId);
+            try {
+                provisioner.shutdown(deploymentId);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Warning unable to shut down " + deploymentId + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Move pending deployments that run by now to ready
+     */
+    private void promote(String key, Provisioner provisioner) {
+        for (File file : list(key, PENDING)) {
+            String deploymentId = file.getName().replace(".properties", "");
+            try {
+                if (provisioner.isRunning(deploymentId)) {
+                    Files.move(file.toPath(), new File(folder(key, READY), file.getName()).toPath(),
+                               StandardCopyOption.ATOMIC_MOVE);
+                }
+            } catch (NoSuchFileException e) {
+                // Moved by another job
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Warning unable to check deployment " + deploymentId + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Folders of the pool keys, the kept folder is not one
+     */
+    private List<File> keys() {
+        File[] keys = dir.listFiles(file -> file.isDirectory() && ! file.getName().equals(KEPT));
+        return keys != null ? Arrays.asList(keys) : new ArrayList<>();
+    }
+
+    private List<File> list(String key, String state) {
+        return list(folder(key, state));
+    }
+
+    /**
+     * Properties files of a folder, oldest first
+     */
+    private static List<File> list(File folder) {
+        File[] files = folder.listFiles((d, name) -> name.endsWith(".properties"));
+        List<File> list = files != null ? new ArrayList<>(Arrays.asList(files)) : new ArrayList<>();
+        list.sort(Comparator.comparingLong(File::lastModified));
+        return list;
+    }
+
+    private File keptFolder() {
+        File folder = new File(dir, KEPT);
+        DatasetCache.mkdirs(folder);
+        return folder;
+    }
+
+    private File folder(String key, String state) {
+        File folder = new File(new File(dir, key), state);
+        DatasetCache.mkdirs(folder);
+        return folder;
+    }
+
+    private interface Locked<T> {
+        T run() throws IOException;
+    }
+
+    private <T> T locked(String key, Locked<T> action) throws IOException {
+        File lockFile = new File(new File(dir, key), "pool.lock");
+        DatasetCache.mkdirs(lockFile.getParentFile());
+        // One writer per jvm, the file lock only excludes other processes
+        synchronized (DeploymentPool.class) {
+            try (RandomAccessFile raf = new RandomAccessFile(lockFile, "rw");
+                 FileChannel channel = raf.getChannel()) {
+                FileLock lock = channel.lock();
+                try {
+                    return action.run();
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+    }
+
+    private static Properties read(File file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        return properties;
+    }
+
+    private static void write(File file, Properties properties) throws IOException {
+        // Written aside and renamed, a job listing the folder never reads half a file
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            properties.store(out, "Cloud Cluster Info");
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void touch(File file) {
+        if (! file.setLastModified(System.currentTimeMillis())) {
+            System.err.println("Warning unable to update time of: " + file);
+        }
+    }
+}
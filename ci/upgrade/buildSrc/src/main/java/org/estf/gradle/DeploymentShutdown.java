@@ -0,0 +1,50 @@
+package org.estf.gradle;
+
+import co.elastic.cloud.api.client.generated.DeploymentsApi;
+import com.bettercloud.vault.VaultException;
+import io.swagger.client.ApiClient;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * DeploymentShutdown
+ *
+ * Shuts down a deployment, releases it from the deployment pool and removes its checkpoint and
+ * properties file.
+ */
+public class DeploymentShutdown {
+
+    public String deploymentId;
+    public boolean localDeployments = false;
+
+    // Removed with the deployment it points at
+    public String checkpointFile;
+
+    public void run() throws IOException, VaultException {
+        if (deploymentId == null || deploymentId.trim().isEmpty()) {
+            throw new Error(this.getClass().getSimpleName() + ": deploymentId is required input");
+        }
+
+        if (localDeployments) {
+            new LocalDeployments(LocalDeployments.getDefaultDir()).shutdown(deploymentId);
+        } else {
+            CloudApi cloudApi = new CloudApi();
+            ApiClient apiClient = cloudApi.getApiClient();
+            DeploymentsApi deploymentsApi = new DeploymentsApi(apiClient);
+            deploymentsApi.shutdownDeployment(deploymentId,true,true);
+        }
+        DeploymentPool.getDefault().release(deploymentId);
+        if (checkpointFile != null) {
+            UpgradeCheckpoint.get(new File(checkpointFile)).delete();
+        }
+
+        String filename = DeploymentFile.getFilename(deploymentId);
+        File f = new File(filename);
+        if (f.exists()) {
+            if (!f.delete()) {
+                System.err.println("Warning unable to delete file: " + filename);
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package org.estf.gradle;
+
+import co.elastic.cloud.api.model.generated.ApmPlan;
+import co.elastic.cloud.api.model.generated.ApmPlansInfo;
+import co.elastic.cloud.api.model.generated.ApmResourceInfo;
+import co.elastic.cloud.api.model.generated.DeploymentGetResponse;
+import co.elastic.cloud.api.model.generated.DeploymentResources;
+import co.elastic.cloud.api.model.generated.ElasticsearchClusterPlan;
+import co.elastic.cloud.api.model.generated.ElasticsearchClusterPlansInfo;
+import co.elastic.cloud.api.model.generated.ElasticsearchResourceInfo;
+import co.elastic.cloud.api.model.generated.EnterpriseSearchPlan;
+import co.elastic.cloud.api.model.generated.EnterpriseSearchPlansInfo;
+import co.elastic.cloud.api.model.generated.EnterpriseSearchResourceInfo;
+import co.elastic.cloud.api.model.generated.KibanaClusterPlan;
+import co.elastic.cloud.api.model.generated.KibanaClusterPlansInfo;
+import co.elastic.cloud.api.model.generated.KibanaResourceInfo;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * DeploymentState
+ *
+ * The resources of a deployment from a single deployment request. Resources the deployment
+ * does not have are null, so apm and enterprise search need no request of their own to find
+ * out whether they are there. Loaded with plans for an upgrade, without for readiness checks.
+ */
+public class DeploymentState {
+
+    private final CloudApi cloudApi;
+    private final DeploymentGetResponse deployment;
+    private final ElasticsearchResourceInfo elasticsearch;
+    private final KibanaResourceInfo kibana;
+    private final ApmResourceInfo apm;
+    private final EnterpriseSearchResourceInfo enterpriseSearch;
+
+    DeploymentState(CloudApi cloudApi, DeploymentGetResponse deployment) {
+        this.cloudApi = cloudApi;
+        this.deployment = deployment;
+        DeploymentResources resources = deployment != null ? deployment.getResources() : null;
+        if (resources == null) {
+            resources = new DeploymentResources();
+        }
+        ElasticsearchResourceInfo es = null;
+        for (ElasticsearchResourceInfo info : listOf(resources.getElasticsearch())) {
+            if (cloudApi.getEsRefId().equals(info.getRefId())) {
+                es = info;
+            }
+        }
+        KibanaResourceInfo kbn = null;
+        for (KibanaResourceInfo info : listOf(resources.getKibana())) {
+            if (cloudApi.getKbRefId().equals(info.getRefId())) {
+                kbn = info;
+            }
+        }
+        ApmResourceInfo apmInfo = null;
+        for (ApmResourceInfo info : listOf(resources.getApm())) {
+            if (cloudApi.getApmRefId().equals(info.getRefId())) {
+                apmInfo = info;
+            }
+        }
+        EnterpriseSearchResourceInfo ensInfo = null;
+        for (EnterpriseSearchResourceInfo info : listOf(resources.getEnterpriseSearch())) {
+            if (cloudApi.getEnsRefId().equals(info.getRefId())) {
+                ensInfo = info;
+            }
+        }
+        this.elasticsearch = es;
+        this.kibana = kbn;
+        this.apm = apmInfo;
+        this.enterpriseSearch = ensInfo;
+    }
+
+    public String getName() {
+        return deployment != null ? deployment.getName() : null;
+    }
+
+    public ElasticsearchResourceInfo getElasticsearch() {
+        return elasticsearch;
+    }
+
+    public KibanaResourceInfo getKibana() {
+        return kibana;
+    }
+
+    public ApmResourceInfo getApm() {
+        return apm;
+    }
+
+    public EnterpriseSearchResourceInfo getEnterpriseSearch() {
+        return enterpriseSearch;
+    }
+
+    public boolean has(String resource) {
+        switch (resource) {
+            case CloudApi.ELASTICSEARCH:
+                return elasticsearch != null;
+            case CloudApi.KIBANA:
+                return kibana != null;
+            case CloudApi.APM:
+                return apm != null;
+            case CloudApi.ENTERPRISE_SEARCH:
+                return enterpriseSearch != null;
+            default:
+                throw new IllegalArgumentException("Unknown deployment resource " + resource);
+        }
+    }
+
+    public boolean isRunning(String resource) {
+        switch (resource) {
+            case CloudApi.ELASTICSEARCH:
+                return elasticsearch != null && elasticsearch.getInfo() != null &&
+                       cloudApi.isElasticsearchClusterRunning(elasticsearch.getInfo());
+            case CloudApi.KIBANA:
+                return kibana != null && kibana.getInfo() != null &&
+                       cloudApi.isKibanaClusterRunning(kibana.getInfo());
+            case CloudApi.APM:
+                return apm != null && apm.getInfo() != null && cloudApi.isApmRunning(apm.getInfo());
+            case CloudApi.ENTERPRISE_SEARCH:
+                return enterpriseSearch != null && enterpriseSearch.getInfo() != null &&
+                       cloudApi.isEnterpriseSearchRunning(enterpriseSearch.getInfo());
+            default:
+                throw new IllegalArgumentException("Unknown deployment resource " + resource);
+        }
+    }
+
+    /**
+     * Stack version of the plan the resource runs, null while it is not running or a plan change
+     * is pending, and when the state was loaded without plans. Right after a change request the
+     * resource still runs its old plan, this tells it apart from the new one.
+     */
+    public String getRunningVersion(String resource) {
+        if (! isRunning(resource)) {
+            return null;
+        }
+        switch (resource) {
+            case CloudApi.ELASTICSEARCH: {
+                ElasticsearchClusterPlansInfo plans = elasticsearch.getInfo().getPlanInfo();
+                if (plans == null || plans.getPending() != null || plans.getCurrent() == null) {
+                    return null;
+                }
+                ElasticsearchClusterPlan plan = plans.getCurrent().getPlan();
+                return plan != null && plan.getElasticsearch() != null ? plan.getElasticsearch().getVersion() : null;
+            }
+            case CloudApi.KIBANA: {
+                KibanaClusterPlansInfo plans = kibana.getInfo().getPlanInfo();
+                if (plans == null || plans.getPending() != null || plans.getCurrent() == null) {
+                    return null;
+                }
+                KibanaClusterPlan plan = plans.getCurrent().getPlan();
+                return plan != null && plan.getKibana() != null ? plan.getKibana().getVersion() : null;
+            }
+            case CloudApi.APM: {
+                ApmPlansInfo plans = apm.getInfo().getPlanInfo();
+                if (plans == null || plans.getPending() != null || plans.getCurrent() == null) {
+                    return null;
+                }
+                ApmPlan plan = plans.getCurrent().getPlan();
+                return plan != null && plan.getApm() != null ? plan.getApm().getVersion() : null;
+            }
+            case CloudApi.ENTERPRISE_SEARCH: {
+                EnterpriseSearchPlansInfo plans = enterpriseSearch.getInfo().getPlanInfo();
+                if (plans == null || plans.getPending() != null || plans.getCurrent() == null) {
+                    return null;
+                }
+                EnterpriseSearchPlan plan = plans.getCurrent().getPlan();
+                return plan != null && plan.getEnterpriseSearch() != null ?
+                       plan.getEnterpriseSearch().getVersion() : null;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown deployment resource " + resource);
+        }
+    }
+
+    /**
+     * True once elasticsearch and every other resource the deployment has are running
+     */
+    public boolean isRunning() {
+        for (String resource : new String[] {CloudApi.ELASTICSEARCH, CloudApi.KIBANA, CloudApi.APM,
+                                             CloudApi.ENTERPRISE_SEARCH}) {
+            if ((resource.equals(CloudApi.ELASTICSEARCH) || has(resource)) && ! isRunning(resource)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static <T> List<T> listOf(List<T> list) {
+        return list != null ? list : Collections.emptyList();
+    }
+}
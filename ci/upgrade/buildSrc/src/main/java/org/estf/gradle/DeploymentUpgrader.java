@@ -0,0 +1,190 @@
+package org.estf.gradle;
+
+import co.elastic.cloud.api.client.generated.DeploymentsApi;
+import co.elastic.cloud.api.model.generated.*;
+import co.elastic.cloud.api.util.Waiter;
+import com.bettercloud.vault.VaultException;
+import io.swagger.client.ApiClient;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * DeploymentUpgrader
+ *
+ * Upgrades elasticsearch of an ESS deployment to a version, then its stateless resources.
+ * Keeps the work of the UpgradeEssDeployment task out of gradle, so UpgradeEssPaths can run it too.
+ */
+public class DeploymentUpgrader {
+
+    public String deploymentId;
+    public String upgradeStackVersion;
+
+    public void run() throws IOException, VaultException {
+        if (deploymentId == null || deploymentId.trim().isEmpty()) {
+            throw new Error(this.getClass().getSimpleName() + ": deploymentId is required input");
+        }
+
+        if (upgradeStackVersion == null || upgradeStackVersion.trim().isEmpty()) {
+            throw new Error(this.getClass().getSimpleName() + ": upgradeStackVersion is required input");
+        }
+
+        CloudApi cloudApi = new CloudApi();
+        ApiClient apiClient = cloudApi.getApiClient();
+        DeploymentsApi deploymentsApi = new DeploymentsApi(apiClient);
+        updateDeployment(cloudApi, deploymentsApi);
+    }
+
+    private void updateDeployment(CloudApi cloudApi, DeploymentsApi deploymentsApi) {
+
+        DeploymentState state = cloudApi.getDeploymentState(deploymentsApi, deploymentId, true);
+
+        ElasticsearchResourceInfo esResourceInfo = state.getElasticsearch();
+        KibanaResourceInfo kbnResourceInfo = state.getKibana();
+        if (esResourceInfo == null || kbnResourceInfo == null) {
+            throw new Error(this.getClass().getSimpleName() + ": deployment " + deploymentId +
+                            " has no elasticsearch or kibana resource");
+        }
+
+        ElasticsearchClusterPlan esPlan =  esResourceInfo
+                .getInfo()
+                .getPlanInfo()
+                .getCurrent()
+                .getPlan();
+
+        for (int i=0; i < esPlan.getClusterTopology().size(); i++) {
+
+            ElasticsearchSystemSettings elasticsearchSystemSettings = esPlan
+                    .getClusterTopology()
+                    .get(i)
+                    .getElasticsearch()
+                    .getSystemSettings();
+
+            ElasticsearchScriptTypeSettings typeSetting = new ElasticsearchScriptTypeSettings()
+                    .enabled(true)
+                    .sandboxMode(null);
+
+            ElasticsearchScriptingUserSettings elasticsearchScriptingSettings = new ElasticsearchScriptingUserSettings()
+                    .expressionsEnabled(null)
+                    .file(null)
+                    .inline(typeSetting)
+                    .stored(typeSetting)
+                    .mustacheEnabled(null)
+                    .painlessEnabled(null);
+
+            ElasticsearchConfiguration esCfg = esPlan.getElasticsearch()
+                    .version(upgradeStackVersion)
+                    .systemSettings(elasticsearchSystemSettings
+                                        .scripting(elasticsearchScriptingSettings)
+                                        .watcherTriggerEngine(null));
+
+            esPlan.getClusterTopology().get(i).setElasticsearch(esCfg);
+            esPlan.getClusterTopology().get(i).setSize(new TopologySize()
+                                                        .value(1024)
+                                                        .resource(TopologySize.ResourceEnum.MEMORY));
+        }
+
+        KibanaClusterPlan kbnPlan =  kbnResourceInfo.getInfo()
+                .getPlanInfo()
+                .getCurrent()
+                .getPlan();
+
+        // Without a current plan the resource is left out of the update, as if it were not there
+        ApmResourceInfo apmResourceInfo = state.getApm();
+        ApmPlan apmPlan = null;
+        if (apmResourceInfo != null && apmResourceInfo.getInfo() != null &&
+            apmResourceInfo.getInfo().getPlanInfo() != null &&
+            apmResourceInfo.getInfo().getPlanInfo().getCurrent() != null) {
+            apmPlan = apmResourceInfo.getInfo()
+                    .getPlanInfo()
+                    .getCurrent()
+                    .getPlan();
+        }
+
+        EnterpriseSearchResourceInfo ensResourceInfo = state.getEnterpriseSearch();
+        EnterpriseSearchPlan ensPlan = null;
+        if (ensResourceInfo != null && ensResourceInfo.getInfo() != null &&
+            ensResourceInfo.getInfo().getPlanInfo() != null &&
+            ensResourceInfo.getInfo().getPlanInfo().getCurrent() != null) {
+            ensPlan = ensResourceInfo.getInfo()
+                    .getPlanInfo()
+                    .getCurrent()
+                    .getPlan();
+        }
+
+        DeploymentUpdateResources deploymentUpdateResources = new DeploymentUpdateResources()
+                .addElasticsearchItem(new ElasticsearchPayload()
+                        .region(esResourceInfo.getRegion())
+                        .refId(esResourceInfo.getRefId())
+                        .plan(esPlan))
+                .addKibanaItem(new KibanaPayload()
+                        .elasticsearchClusterRefId(kbnResourceInfo.getElasticsearchClusterRefId())
+                        .region(kbnResourceInfo.getRegion())
+                        .refId(kbnResourceInfo.getRefId())
+                        .plan(kbnPlan));
+
+        if (apmPlan != null) {
+            deploymentUpdateResources.addApmItem(new ApmPayload()
+                    .elasticsearchClusterRefId(apmResourceInfo.getElasticsearchClusterRefId())
+                    .region(apmResourceInfo.getRegion())
+                    .refId(apmResourceInfo.getRefId())
+                    .plan(apmPlan));
+        }
+
+        if (ensPlan != null) {
+            deploymentUpdateResources.addEnterpriseSearchItem(new EnterpriseSearchPayload()
+                    .elasticsearchClusterRefId(ensResourceInfo.getElasticsearchClusterRefId())
+                    .region(ensResourceInfo.getRegion())
+                    .refId(ensResourceInfo.getRefId())
+                    .plan(ensPlan));
+        }
+
+        DeploymentUpdateRequest deploymentUpdateRequest = new DeploymentUpdateRequest()
+                .name(state.getName())
+                .pruneOrphans(true)
+                .resources(deploymentUpdateResources);
+
+        DeploymentUpdateResponse response = deploymentsApi.updateDeployment(deploymentId,
+                deploymentUpdateRequest,
+                false,
+                false,
+                false,
+                null);
+
+        Waiter.setWait(Duration.ofMinutes(20));
+
+        // The update request returns before the plans change, the resources still run the old ones.
+        // Kibana keeps its version until its own upgrade below.
+        Map<String, String> versions = new LinkedHashMap<>();
+        versions.put(CloudApi.ELASTICSEARCH, upgradeStackVersion);
+        versions.put(CloudApi.KIBANA, kbnPlan.getKibana() != null ? kbnPlan.getKibana().getVersion() : null);
+        cloudApi.waitForVersions(deploymentsApi, deploymentId, versions);
+
+        // The stateless resources only depend on elasticsearch, upgrade them all at once
+        versions.clear();
+        upgradeStatelessResource(deploymentsApi, CloudApi.KIBANA, cloudApi.getKbRefId());
+        versions.put(CloudApi.KIBANA, upgradeStackVersion);
+
+        if (apmPlan != null) {
+            upgradeStatelessResource(deploymentsApi, CloudApi.APM, cloudApi.getApmRefId());
+            versions.put(CloudApi.APM, upgradeStackVersion);
+        }
+
+        if (ensPlan != null) {
+            upgradeStatelessResource(deploymentsApi, CloudApi.ENTERPRISE_SEARCH, cloudApi.getEnsRefId());
+            versions.put(CloudApi.ENTERPRISE_SEARCH, upgradeStackVersion);
+        }
+
+        cloudApi.waitForVersions(deploymentsApi, deploymentId, versions);
+    }
+
+    private void upgradeStatelessResource(DeploymentsApi deploymentsApi, String kind, String refId) {
+        long start = System.currentTimeMillis();
+        deploymentsApi.upgradeDeploymentStatelessResource(deploymentId, kind, refId, false);
+        long millis = System.currentTimeMillis() - start;
+        System.out.println("Deployment " + deploymentId + ": " + kind + " upgrade started in " + millis + " ms");
+        RequestMetrics.recordTask("upgrade " + kind, millis);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,125 @@
+package org.estf.gradle;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * FastLoad
+ *
+ * Turns off refresh and replicas of the indices being loaded and puts their own settings
+ * back when closed, whether or not the load succeeded, then refreshes them so the data
+ * is searchable right away. Indices that do not exist yet are created first so they are
+ * covered as well.
+ */
+public class FastLoad implements AutoCloseable {
+
+    static final String REFRESH_INTERVAL = "index.refresh_interval";
+    static final String NUMBER_OF_REPLICAS = "index.number_of_replicas";
+
+    private final RestApi api;
+    private final String esBaseUrl;
+    private final Map<String, Map<String, String>> original = new LinkedHashMap<>();
+    private boolean closed;
+
+    private FastLoad(RestApi api, String esBaseUrl) {
+        this.api = api;
+        this.esBaseUrl = esBaseUrl;
+    }
+
+    public interface Load {
+        void run() throws IOException;
+    }
+
+    /**
+     * Run the load with the indices in fast load mode when enabled, else just run it
+     */
+    public static void run(RestApi api, String esBaseUrl, List<String> indices, boolean enabled, Load load)
+            throws IOException {
+        if (! enabled) {
+            load.run();
+            return;
+        }
+        FastLoad fastLoad = begin(api, esBaseUrl, indices);
+        try {
+            load.run();
+        } catch (IOException | RuntimeException e) {
+            try {
+                fastLoad.close();
+            } catch (IOException closeFailure) {
+                e.addSuppressed(closeFailure);
+            }
+            throw e;
+        }
+        fastLoad.close();
+    }
+
+    private static FastLoad begin(RestApi api, String esBaseUrl, List<String> indices) throws IOException {
+        FastLoad fastLoad = new FastLoad(api, esBaseUrl);
+        try {
+            for (String index : indices) {
+                fastLoad.apply(index);
+            }
+        } catch (IOException | RuntimeException e) {
+            fastLoad.close();
+            throw e;
+        }
+        return fastLoad;
+    }
+
+    private void apply(String index) throws IOException {
+        Map<String, String> settings = null;
+        if (api.exists(esBaseUrl + "/" + index)) {
+            settings = api.get(esBaseUrl + "/" + index + "/_settings?flat_settings=true",
+                               JsonResponses::readFlatSettings).get(index);
+        } else {
+            api.put(esBaseUrl + "/" + index, "{}", false);
+        }
+        Map<String, String> snapshot = new LinkedHashMap<>();
+        snapshot.put(REFRESH_INTERVAL, settings != null ? settings.get(REFRESH_INTERVAL) : null);
+        snapshot.put(NUMBER_OF_REPLICAS, settings != null ? settings.get(NUMBER_OF_REPLICAS) : null);
+        original.put(index, snapshot);
+        System.out.println("Fast load " + index + ", was: " + snapshot);
+        api.put(esBaseUrl + "/" + index + "/_settings", new JSONObject()
+                .put(REFRESH_INTERVAL, "-1")
+                .put(NUMBER_OF_REPLICAS, 0).toString(), false);
+    }
+
+    /**
+     * Restore every index even when one of them fails, the first failure is thrown
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        IOException failure = null;
+        for (Map.Entry<String, Map<String, String>> entry : original.entrySet()) {
+            String index = entry.getKey();
+            // A null value resets the setting to its default
+            JSONObject settings = new JSONObject();
+            for (Map.Entry<String, String> setting : entry.getValue().entrySet()) {
+                settings.put(setting.getKey(), setting.getValue() != null ? setting.getValue() : JSONObject.NULL);
+            }
+            try {
+                api.put(esBaseUrl + "/" + index + "/_settings", settings.toString(), false);
+                long start = System.currentTimeMillis();
+                api.post(esBaseUrl + "/" + index + "/_refresh", "{}", false);
+                System.out.println("Restored " + index + " settings, refresh took " +
+                                   (System.currentTimeMillis() - start) + " ms");
+            } catch (IOException e) {
+                System.err.println("Warning unable to restore settings of " + index + ": " + e.getMessage());
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package org.estf.gradle;
+
+import com.bettercloud.vault.VaultException;
+import org.gradle.api.tasks.TaskAction;
+
+import java.io.IOException;
+
+/**
+ * FillEssDeploymentPool
+ *
+ * Shuts down deployments kept too long in the deployment pool and requests new ones until
+ * the pool of this stack version and topology has poolSize of them. Meant to run ahead of
+ * the jobs, which then lease a running deployment from the pool.
+ */
+public class FillEssDeploymentPool extends CreateEssDeployment {
+
+    @TaskAction
+    @Override
+    public void run() throws IOException, VaultException {
+        newCreator().fill();
+    }
+}
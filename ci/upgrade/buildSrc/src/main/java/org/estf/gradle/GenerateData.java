@@ -0,0 +1,329 @@
+package org.estf.gradle;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.TaskAction;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * GenerateData
+ *
+ * Indexes a reproducible synthetic data set of any size: docs documents spread round robin
+ * over indices indices named indexPrefix-N. Field values follow the mappings, keyword fields
+ * take cardinality distinct values and text fields are filled up to about docBytes per
+ * document. Every document is derived from seed and its number only, so the same settings
+ * always produce the same documents with the same ids, however many threads index them.
+ */
+public class GenerateData extends DefaultTask {
+
+    static final String DEFAULT_MAPPINGS = "{\"properties\": {" +
+            "\"@timestamp\": {\"type\": \"date\"}," +
+            "\"user\": {\"type\": \"keyword\"}," +
+            "\"category\": {\"type\": \"keyword\"}," +
+            "\"host\": {\"type\": \"ip\"}," +
+            "\"bytes\": {\"type\": \"long\"}," +
+            "\"price\": {\"type\": \"double\"}," +
+            "\"active\": {\"type\": \"boolean\"}," +
+            "\"message\": {\"type\": \"text\"}}}";
+
+    private static final long BASE_TIMESTAMP_MS = 1577836800000L;
+    private static final long TIMESTAMP_RANGE_MS = 365L * 24 * 60 * 60 * 1000;
+    private static final String[] WORDS = {
+            "elastic", "search", "kibana", "upgrade", "cluster", "node", "shard", "replica", "index",
+            "mapping", "query", "bucket", "latency", "request", "snapshot", "rolling", "restart",
+            "version", "deployment", "cloud", "heap", "thread", "pool", "merge", "segment", "refresh"
+    };
+
+    @Input
+    public String esBaseUrl;
+
+    @Input
+    public String username;
+
+    @Input
+    public String password;
+
+    @Input
+    public String version;
+
+    @Input
+    public String upgradeVersion;
+
+    @Input
+    public long docs = 1000000;
+
+    @Input
+    public int indices = 1;
+
+    @Input
+    public String indexPrefix = "generated";
+
+    @Input
+    public int shards = 1;
+
+    @Input
+    public long seed = 1;
+
+    @Input
+    public int cardinality = 1000;
+
+    @Input
+    public int docBytes = 512;
+
+    @Input
+    public int threads = Runtime.getRuntime().availableProcessors();
+
+    // Load with refresh and replicas turned off, see FastLoad
+    @Input
+    public boolean fastLoad = false;
+
+    // File with the mappings of the generated indices, the default mappings when empty
+    @Input
+    public String mappingsFile = "";
+
+    @TaskAction
+    public void run() throws IOException {
+        RestApi api = new RestApi(username, password, version, upgradeVersion);
+        int majorVersion = api.setMajorVersion();
+        JSONObject mappings = new JSONObject(mappingsFile.trim().isEmpty() ? DEFAULT_MAPPINGS :
+                new String(Files.readAllBytes(Paths.get(mappingsFile.trim())), StandardCharsets.UTF_8));
+        List<Field> fields = Field.fromMappings(mappings);
+        if (fields.isEmpty()) {
+            throw new IOException("FAILED! No fields in mappings: " + mappings);
+        }
+        String type = majorVersion < 7 ? "doc" : null;
+        List<String> indexNames = new ArrayList<>();
+        for (int i = 0; i < indices; i++) {
+            createIndex(api, indexName(i), type, mappings);
+            indexNames.add(indexName(i));
+        }
+        FastLoad.run(api, esBaseUrl, indexNames, fastLoad, () -> generate(api, fields, type));
+        if (! fastLoad) {
+            api.post(esBaseUrl + "/" + indexPrefix + "-*/_refresh", "{}", false);
+        }
+    }
+
+    private void generate(RestApi api, List<Field> fields, String type) throws IOException {
+
+        System.out.println("Generating " + docs + " documents into " + indices + " indices with " + threads +
+                           " threads, seed " + seed);
+        long start = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<BulkIndexer>> workers = new ArrayList<>();
+        try {
+            for (int w = 0; w < threads; w++) {
+                long from = docs * w / threads;
+                long to = docs * (w + 1) / threads;
+                workers.add(executor.submit(() -> generateRange(api, fields, type, from, to)));
+            }
+            long indexed = 0;
+            long bytes = 0;
+            List<String> errors = new ArrayList<>();
+            for (Future<BulkIndexer> worker : workers) {
+                BulkIndexer indexer = worker.get();
+                indexed += indexer.getIndexed();
+                bytes += indexer.getBytesSent();
+                errors.addAll(indexer.getErrors());
+            }
+            double seconds = Math.max(System.currentTimeMillis() - start, 1) / 1000.0;
+            System.out.println(String.format("Generated %d documents in %.1f s, %.0f docs/s, %.2f MB/s",
+                                             indexed, seconds, indexed / seconds,
+                                             bytes / (1024.0 * 1024.0) / seconds));
+            RequestMetrics.recordLoad(indexPrefix, fastLoad, indexed, bytes, System.currentTimeMillis() - start);
+            if (! errors.isEmpty()) {
+                System.err.println("Warning " + errors.size() + " generated documents failed, first: " +
+                                   errors.get(0));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while generating data", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause :
+                    new IOException("Generating data failed: " + cause.getMessage(), cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private BulkIndexer generateRange(RestApi api, List<Field> fields, String type, long from, long to)
+            throws IOException {
+        // Each thread already keeps a core busy, one request in flight per thread is enough
+        try (BulkIndexer indexer = new BulkIndexer(api, esBaseUrl + "/_bulk",
+                RetryPolicy.getEnvInt("ESTF_BULK_MAX_DOCS", BulkIndexer.DEFAULT_MAX_DOCS),
+                RetryPolicy.getEnvInt("ESTF_BULK_MAX_BYTES", BulkIndexer.DEFAULT_MAX_BYTES), 1)) {
+            int textFields = Field.countText(fields);
+            int textBytes = textFields > 0 ? Math.max(0, docBytes - fields.size() * 24) / textFields : 0;
+            StringBuilder action = new StringBuilder();
+            StringBuilder source = new StringBuilder();
+            for (long n = from; n < to; n++) {
+                SplittableRandom random = new SplittableRandom(mix(seed, n));
+                action.setLength(0);
+                action.append("{\"index\":{\"_index\":\"").append(indexName((int) (n % indices)))
+                      .append("\",\"_id\":\"").append(n / indices).append('"');
+                if (type != null) {
+                    action.append(",\"_type\":\"").append(type).append('"');
+                }
+                action.append("}}");
+                source.setLength(0);
+                Field.writeObject(source, fields, random, cardinality, textBytes);
+                indexer.add(action.toString(), source.toString());
+            }
+            // Closed before it is returned, so its counters include the last batch
+            return indexer;
+        }
+    }
+
+    private void createIndex(RestApi api, String index, String type, JSONObject mappings) throws IOException {
+        if (api.exists(esBaseUrl + "/" + index)) {
+            System.out.println("Index exists, adding to it: " + index);
+            return;
+        }
+        JSONObject body = new JSONObject()
+                .put("settings", new JSONObject().put("number_of_shards", shards))
+                .put("mappings", type != null ? new JSONObject().put(type, mappings) : mappings);
+        api.put(esBaseUrl + "/" + index, body.toString(), false);
+    }
+
+    private String indexName(int i) {
+        return indexPrefix + "-" + i;
+    }
+
+    /**
+     * Seed of one document, spread so neighbouring document numbers get unrelated values
+     */
+    static long mix(long seed, long n) {
+        long z = seed * 0x9E3779B97F4A7C15L + n;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * One mapped field and how to make up a value for it
+     */
+    static class Field {
+        final String name;
+        final String type;
+        final List<Field> properties;
+
+        Field(String name, String type, List<Field> properties) {
+            this.name = name;
+            this.type = type;
+            this.properties = properties;
+        }
+
+        static List<Field> fromMappings(JSONObject mappings) {
+            List<Field> fields = new ArrayList<>();
+            JSONObject properties = mappings.optJSONObject("properties");
+            if (properties == null) {
+                return fields;
+            }
+            for (String name : new TreeSet<>(properties.keySet())) {
+                JSONObject property = properties.getJSONObject(name);
+                if (property.has("properties")) {
+                    fields.add(new Field(name, "object", fromMappings(property)));
+                } else {
+                    fields.add(new Field(name, property.optString("type", "keyword"), null));
+                }
+            }
+            return fields;
+        }
+
+        static int countText(List<Field> fields) {
+            int count = 0;
+            for (Field field : fields) {
+                if (field.properties != null) {
+                    count += countText(field.properties);
+                } else if (field.type.equals("text") || field.type.equals("match_only_text")) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        static void writeObject(StringBuilder sb, List<Field> fields, SplittableRandom random,
+                                int cardinality, int textBytes) {
+            sb.append('{');
+            for (int i = 0; i < fields.size(); i++) {
+                Field field = fields.get(i);
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append('"').append(field.name).append("\":");
+                field.writeValue(sb, random, cardinality, textBytes);
+            }
+            sb.append('}');
+        }
+
+        void writeValue(StringBuilder sb, SplittableRandom random, int cardinality, int textBytes) {
+            if (properties != null) {
+                writeObject(sb, properties, random, cardinality, textBytes);
+                return;
+            }
+            switch (type) {
+                case "object":
+                case "nested":
+                    sb.append("{}");
+                    break;
+                case "long":
+                case "integer":
+                case "short":
+                    sb.append(random.nextInt(Short.MAX_VALUE));
+                    break;
+                case "byte":
+                    sb.append(random.nextInt(Byte.MAX_VALUE + 1));
+                    break;
+                case "double":
+                case "float":
+                case "half_float":
+                case "scaled_float":
+                    sb.append(Math.round(random.nextDouble() * 100000) / 100.0);
+                    break;
+                case "date":
+                    sb.append(BASE_TIMESTAMP_MS + random.nextLong(TIMESTAMP_RANGE_MS));
+                    break;
+                case "boolean":
+                    sb.append(random.nextBoolean());
+                    break;
+                case "ip":
+                    int ip = random.nextInt(Math.max(1, cardinality));
+                    sb.append("\"10.").append((ip >> 16) & 0xff).append('.').append((ip >> 8) & 0xff)
+                      .append('.').append(ip & 0xff).append('"');
+                    break;
+                case "geo_point":
+                    sb.append('"').append(Math.round(random.nextDouble() * 18000 - 9000) / 100.0).append(',')
+                      .append(Math.round(random.nextDouble() * 36000 - 18000) / 100.0).append('"');
+                    break;
+                case "text":
+                case "match_only_text":
+                    sb.append('"');
+                    int start = sb.length();
+                    do {
+                        if (sb.length() > start) {
+                            sb.append(' ');
+                        }
+                        sb.append(WORDS[random.nextInt(WORDS.length)]);
+                    } while (sb.length() - start < textBytes);
+                    sb.append('"');
+                    break;
+                default:
+                    sb.append('"').append(name).append('-').append(random.nextInt(Math.max(1, cardinality)))
+                      .append('"');
+            }
+        }
+    }
+}
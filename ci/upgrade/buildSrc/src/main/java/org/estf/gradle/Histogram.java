@@ -0,0 +1,99 @@
+package org.estf.gradle;
+
+import org.json.JSONObject;
+
+/**
+ * Histogram
+ *
+ * Small log-linear histogram in the spirit of HdrHistogram. Values are grouped by power of
+ * two and each power of two is split in 16 linear sub buckets, which keeps percentiles
+ * within ~6% of the recorded value with a fixed amount of memory.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] counts = new long[64 * SUB_BUCKETS];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    public synchronized void record(long value) {
+        value = Math.max(0, value);
+        counts[index(value)]++;
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    public synchronized long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    public synchronized double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    public synchronized long getSum() {
+        return sum;
+    }
+
+    /**
+     * Value at the given percentile (0-100), reported as the upper bound of its bucket
+     */
+    public synchronized long percentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(upperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    public synchronized JSONObject toJson(double scale) {
+        return new JSONObject()
+                .put("count", count)
+                .put("min", getMin() / scale)
+                .put("mean", getMean() / scale)
+                .put("p50", percentile(50) / scale)
+                .put("p90", percentile(90) / scale)
+                .put("p99", percentile(99) / scale)
+                .put("max", max / scale);
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long subBucket = index % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+}
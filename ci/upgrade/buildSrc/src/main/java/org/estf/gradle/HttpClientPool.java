@@ -0,0 +1,102 @@
+package org.estf.gradle;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HttpClientPool
+ *
+ * Single connection pooled http client shared by all tasks in a build, so that
+ * requests to the same deployment reuse open TLS connections.
+ */
+public class HttpClientPool {
+
+    static final int MAX_TOTAL_CONNECTIONS = 40;
+    static final int MAX_CONNECTIONS_PER_ROUTE = 10;
+    static final long KEEP_ALIVE_MS = 30000;
+    static final long IDLE_EVICT_MS = 30000;
+    static final int CONNECT_TIMEOUT_MS = 30000;
+    static final int SOCKET_TIMEOUT_MS = 300000;
+
+    private static CloseableHttpClient client;
+    private static PoolingHttpClientConnectionManager connectionManager;
+
+    private HttpClientPool() {
+    }
+
+    public static synchronized CloseableHttpClient getClient() {
+        if (client == null) {
+            connectionManager = new PoolingHttpClientConnectionManager();
+            connectionManager.setMaxTotal(MAX_TOTAL_CONNECTIONS);
+            connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+            connectionManager.setValidateAfterInactivity(2000);
+
+            RequestConfig requestConfig = RequestConfig.custom()
+                    .setConnectTimeout(CONNECT_TIMEOUT_MS)
+                    .setConnectionRequestTimeout(CONNECT_TIMEOUT_MS)
+                    .setSocketTimeout(SOCKET_TIMEOUT_MS)
+                    .build();
+
+            client = HttpClientBuilder.create()
+                    .setConnectionManager(connectionManager)
+                    .setDefaultRequestConfig(requestConfig)
+                    .setKeepAliveStrategy(keepAliveStrategy())
+                    .evictExpiredConnections()
+                    .evictIdleConnections(IDLE_EVICT_MS, TimeUnit.MILLISECONDS)
+                    .build();
+        }
+        return client;
+    }
+
+    /**
+     * Execute on the shared client with the default retry policy
+     */
+    public static CloseableHttpResponse execute(HttpUriRequest request) throws IOException {
+        return RetryPolicy.getDefault().execute(getClient(), request);
+    }
+
+    public static synchronized void close() {
+        if (client == null) {
+            return;
+        }
+        try {
+            client.close();
+        } catch (IOException e) {
+            System.err.println("Warning unable to close http client: " + e.getMessage());
+        }
+        client = null;
+        connectionManager = null;
+    }
+
+    private static ConnectionKeepAliveStrategy keepAliveStrategy() {
+        return (HttpResponse response, HttpContext context) -> {
+            // Honor the server keep alive timeout if given, otherwise use our default
+            HeaderElementIterator it = new BasicHeaderElementIterator(
+                    response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+            while (it.hasNext()) {
+                HeaderElement element = it.nextElement();
+                String value = element.getValue();
+                if (value != null && element.getName().equalsIgnoreCase("timeout")) {
+                    try {
+                        return Math.min(Long.parseLong(value) * 1000, KEEP_ALIVE_MS);
+                    } catch (NumberFormatException ignored) {}
+                }
+            }
+            return KEEP_ALIVE_MS;
+        };
+    }
+}
@@ -0,0 +1,848 @@
+package org.estf.gradle;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JsonResponses
+ *
+ * Streaming readers for the Elasticsearch and Kibana responses we act on. Each reader
+ * walks the response once and keeps only the fields it needs, everything else is skipped.
+ */
+public class JsonResponses {
+
+    private JsonResponses() {
+    }
+
+    /**
+     * Migration assistance: indices.*.action_required
+     */
+    public static Map<String, String> readActionRequired(JsonReader reader) throws IOException {
+        Map<String, String> actions = new LinkedHashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("indices") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String index = reader.nextName();
+                    String action = readStringField(reader, "action_required");
+                    if (action != null) {
+                        actions.put(index, action);
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return actions;
+    }
+
+    /**
+     * Upgrade assistant status: indices[].index where indices[].reindex is true
+     */
+    public static List<String> readIndicesToReindex(JsonReader reader) throws IOException {
+        List<String> indices = new ArrayList<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("indices") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    String index = null;
+                    boolean reindex = false;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String name = reader.nextName();
+                        if (name.equals("index") && reader.peek() == JsonToken.STRING) {
+                            index = reader.nextString();
+                        } else if (name.equals("reindex") && reader.peek() == JsonToken.BOOLEAN) {
+                            reindex = reader.nextBoolean();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                    if (reindex && index != null) {
+                        indices.add(index);
+                    }
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return indices;
+    }
+
+    /**
+     * Upgrade assistant reindex: reindexOp status, lastCompletedStep, reindexTaskPercComplete
+     * and errorMessage, null if there is no reindex operation
+     */
+    public static ReindexOp readReindexOp(JsonReader reader) throws IOException {
+        ReindexOp op = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("reindexOp") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                op = new ReindexOp();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    JsonToken token = reader.peek();
+                    if (name.equals("status") && token == JsonToken.NUMBER) {
+                        op.status = reader.nextInt();
+                    } else if (name.equals("lastCompletedStep") && token == JsonToken.NUMBER) {
+                        op.lastCompletedStep = reader.nextInt();
+                    } else if (name.equals("reindexTaskPercComplete") && token == JsonToken.NUMBER) {
+                        op.percComplete = reader.nextDouble();
+                    } else if (name.equals("errorMessage") && token == JsonToken.STRING) {
+                        op.errorMessage = reader.nextString();
+                    } else if (name.equals("reindexTaskId") && token == JsonToken.STRING) {
+                        op.reindexTaskId = reader.nextString();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return op;
+    }
+
+    public static class ReindexOp {
+        public int status = -1;
+        public int lastCompletedStep;
+        public double percComplete;
+        public String errorMessage;
+        public String reindexTaskId;
+    }
+
+    /**
+     * Bulk: items[].&lt;action&gt;.error, one entry per rejected document
+     */
+    public static List<String> readBulkErrors(JsonReader reader) throws IOException {
+        List<String> errors = new ArrayList<>();
+        for (BulkItem item : readBulkItems(reader)) {
+            if (item.error != null) {
+                errors.add(item.id + " " + item.error);
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * Bulk: items[].&lt;action&gt; id, status and error, in request order
+     */
+    public static List<BulkItem> readBulkItems(JsonReader reader) throws IOException {
+        List<BulkItem> items = new ArrayList<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("items") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    BulkItem item = new BulkItem();
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        reader.nextName();
+                        readBulkItem(reader, item);
+                    }
+                    reader.endObject();
+                    items.add(item);
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return items;
+    }
+
+    /**
+     * Index settings with flat_settings: &lt;index&gt;.settings.*, per index
+     */
+    public static Map<String, Map<String, String>> readFlatSettings(JsonReader reader) throws IOException {
+        Map<String, Map<String, String>> settings = new LinkedHashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String index = reader.nextName();
+            Map<String, String> indexSettings = new LinkedHashMap<>();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("settings") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String name = reader.nextName();
+                        if (reader.peek() == JsonToken.STRING || reader.peek() == JsonToken.NUMBER) {
+                            indexSettings.put(name, reader.nextString());
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            settings.put(index, indexSettings);
+        }
+        reader.endObject();
+        return settings;
+    }
+
+    /**
+     * Cat indices with format=json and bytes=b: [].index and [].store.size
+     */
+    public static Map<String, Long> readIndexSizes(JsonReader reader) throws IOException {
+        Map<String, Long> sizes = new LinkedHashMap<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            String index = null;
+            long size = 0;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.skipValue();
+                } else if (name.equals("index")) {
+                    index = reader.nextString();
+                } else if (name.equals("store.size")) {
+                    size = Long.parseLong(reader.nextString());
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (index != null) {
+                sizes.put(index, size);
+            }
+        }
+        reader.endArray();
+        return sizes;
+    }
+
+    /**
+     * Nodes info thread_pool: sum of nodes.*.thread_pool.write.size, bulk before 6.3
+     */
+    public static int readWriteThreads(JsonReader reader) throws IOException {
+        int threads = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("nodes") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    reader.nextName();
+                    threads += readNodeWriteThreads(reader);
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return threads;
+    }
+
+    /**
+     * Background request: task
+     */
+    public static String readTaskId(JsonReader reader) throws IOException {
+        String task = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("task") && reader.peek() == JsonToken.STRING) {
+                task = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return task;
+    }
+
+    /**
+     * Tasks: completed, task.status counters, response.failures and error of a reindex task
+     */
+    public static TaskStatus readTaskStatus(JsonReader reader) throws IOException {
+        TaskStatus status = new TaskStatus();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("completed") && reader.peek() == JsonToken.BOOLEAN) {
+                status.completed = reader.nextBoolean();
+            } else if (name.equals("task") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (reader.nextName().equals("status") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                        readTaskCounters(reader, status);
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (name.equals("response") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (reader.nextName().equals("failures") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            reader.skipValue();
+                            status.failures++;
+                        }
+                        reader.endArray();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (name.equals("error") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                status.error = readStringField(reader, "reason");
+                if (status.error == null) {
+                    status.error = "unknown error";
+                }
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return status;
+    }
+
+    public static class TaskStatus {
+        public boolean completed;
+        public long total;
+        public long created;
+        public long updated;
+        public long deleted;
+        public long versionConflicts;
+        public float requestsPerSecond = -1;
+        public int failures;
+        public String error;
+
+        public long getDone() {
+            return created + updated + deleted + versionConflicts;
+        }
+    }
+
+    /**
+     * Aliases: the indices that have the alias
+     */
+    public static List<String> readAliasIndices(JsonReader reader) throws IOException {
+        List<String> indices = new ArrayList<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            indices.add(reader.nextName());
+            reader.skipValue();
+        }
+        reader.endObject();
+        return indices;
+    }
+
+    /**
+     * Cluster health: status
+     */
+    public static String readHealthStatus(JsonReader reader) throws IOException {
+        String status = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("status") && reader.peek() == JsonToken.STRING) {
+                status = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return status;
+    }
+
+    /**
+     * Snapshots of a repository: snapshots[].snapshot, state and indices, per snapshot
+     */
+    public static Map<String, Snapshot> readSnapshots(JsonReader reader) throws IOException {
+        Map<String, Snapshot> snapshots = new LinkedHashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("snapshots") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    String name = null;
+                    Snapshot snapshot = new Snapshot();
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String field = reader.nextName();
+                        if (field.equals("snapshot") && reader.peek() == JsonToken.STRING) {
+                            name = reader.nextString();
+                        } else if (field.equals("state") && reader.peek() == JsonToken.STRING) {
+                            snapshot.state = reader.nextString();
+                        } else if (field.equals("indices") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                            reader.beginArray();
+                            while (reader.hasNext()) {
+                                snapshot.indices.add(reader.nextString());
+                            }
+                            reader.endArray();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                    if (name != null) {
+                        snapshots.put(name, snapshot);
+                    }
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return snapshots;
+    }
+
+    public static class Snapshot {
+        public String state;
+        public List<String> indices = new ArrayList<>();
+    }
+
+    /**
+     * Snapshot status: state and shards_stats done and total of the first snapshot
+     */
+    public static SnapshotStatus readSnapshotStatus(JsonReader reader) throws IOException {
+        SnapshotStatus status = new SnapshotStatus();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("snapshots") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (status.state != null) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String field = reader.nextName();
+                        if (field.equals("state") && reader.peek() == JsonToken.STRING) {
+                            status.state = reader.nextString();
+                        } else if (field.equals("shards_stats") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                            reader.beginObject();
+                            while (reader.hasNext()) {
+                                String counter = reader.nextName();
+                                if (counter.equals("done") && reader.peek() == JsonToken.NUMBER) {
+                                    status.done = reader.nextInt();
+                                } else if (counter.equals("total") && reader.peek() == JsonToken.NUMBER) {
+                                    status.total = reader.nextInt();
+                                } else {
+                                    reader.skipValue();
+                                }
+                            }
+                            reader.endObject();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return status;
+    }
+
+    public static class SnapshotStatus {
+        public String state;
+        public int done;
+        public int total;
+    }
+
+    /**
+     * Index recovery: &lt;index&gt;.shards[].stage and index.size total and recovered bytes, summed
+     * over all indices
+     */
+    public static RecoveryStatus readRecovery(JsonReader reader) throws IOException {
+        RecoveryStatus status = new RecoveryStatus();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            reader.nextName();
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
+            }
+            status.indices++;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("shards") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        readRecoveryShard(reader, status);
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        reader.endObject();
+        return status;
+    }
+
+    public static class RecoveryStatus {
+        public int indices;
+        public int shards;
+        public int done;
+        public long totalBytes;
+        public long recoveredBytes;
+    }
+
+    /**
+     * Count: count
+     */
+    public static long readCount(JsonReader reader) throws IOException {
+        long count = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("count") && reader.peek() == JsonToken.NUMBER) {
+                count = reader.nextLong();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return count;
+    }
+
+    /**
+     * Search: hits.hits[]._source, the scalar fields of each hit
+     */
+    public static List<Map<String, String>> readHitSources(JsonReader reader) throws IOException {
+        List<Map<String, String>> sources = new ArrayList<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("hits") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (reader.nextName().equals("hits") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            reader.beginObject();
+                            while (reader.hasNext()) {
+                                if (reader.nextName().equals("_source") &&
+                                    reader.peek() == JsonToken.BEGIN_OBJECT) {
+                                    sources.add(readScalarFields(reader));
+                                } else {
+                                    reader.skipValue();
+                                }
+                            }
+                            reader.endObject();
+                        }
+                        reader.endArray();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return sources;
+    }
+
+    /**
+     * Nodes stats: highest os.cpu.percent, and write (bulk before 6.3) queue and rejected and
+     * indices.indexing totals summed over all nodes
+     */
+    public static NodeLoad readNodeLoad(JsonReader reader) throws IOException {
+        NodeLoad load = new NodeLoad();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("nodes") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    reader.nextName();
+                    readNodeStats(reader, load);
+                    load.nodes++;
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return load;
+    }
+
+    public static class NodeLoad {
+        public int nodes;
+        public int maxCpuPercent;
+        public long writeQueue;
+        public long writeRejected;
+        public long indexTotal;
+        public long indexTimeMs;
+    }
+
+    public static class BulkItem {
+        public String id;
+        public int status;
+        public String error;
+    }
+
+    /**
+     * Reads one object and returns the scalar value of the given field as a string
+     */
+    private static String readStringField(JsonReader reader, String field) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return null;
+        }
+        String value = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            JsonToken token = reader.peek();
+            if (name.equals(field) && (token == JsonToken.STRING || token == JsonToken.NUMBER)) {
+                value = reader.nextString();
+            } else if (name.equals(field) && token == JsonToken.BOOLEAN) {
+                value = String.valueOf(reader.nextBoolean());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return value;
+    }
+
+    /**
+     * Reads one recovery shard: its stage and the sizes of its index files
+     */
+    private static void readRecoveryShard(JsonReader reader, RecoveryStatus status) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return;
+        }
+        status.shards++;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("stage") && reader.peek() == JsonToken.STRING) {
+                if (reader.nextString().equals("DONE")) {
+                    status.done++;
+                }
+            } else if (name.equals("index") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (reader.nextName().equals("size") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                        Map<String, String> size = readScalarFields(reader);
+                        status.totalBytes += Long.parseLong(size.getOrDefault("total_in_bytes", "0"));
+                        status.recoveredBytes += Long.parseLong(size.getOrDefault("recovered_in_bytes", "0"));
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    /**
+     * Reads one object and returns its scalar fields as strings, nested values are skipped
+     */
+    private static Map<String, String> readScalarFields(JsonReader reader) throws IOException {
+        Map<String, String> fields = new LinkedHashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            JsonToken token = reader.peek();
+            if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+                fields.put(name, reader.nextString());
+            } else if (token == JsonToken.BOOLEAN) {
+                fields.put(name, String.valueOf(reader.nextBoolean()));
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return fields;
+    }
+
+    /**
+     * Reads one bulk item result: its id, status and "type: reason" of its error, if any
+     */
+    private static void readBulkItem(JsonReader reader, BulkItem item) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("_id") && reader.peek() == JsonToken.STRING) {
+                item.id = reader.nextString();
+            } else if (name.equals("status") && reader.peek() == JsonToken.NUMBER) {
+                item.status = reader.nextInt();
+            } else if (name.equals("error") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                String type = null;
+                String reason = null;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String errorName = reader.nextName();
+                    if (errorName.equals("type") && reader.peek() == JsonToken.STRING) {
+                        type = reader.nextString();
+                    } else if (errorName.equals("reason") && reader.peek() == JsonToken.STRING) {
+                        reason = reader.nextString();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                item.error = type + ": " + reason;
+            } else if (name.equals("error") && reader.peek() == JsonToken.STRING) {
+                item.error = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    /**
+     * Size of the write thread pool of one node, or of the bulk pool on versions before 6.3
+     */
+    private static int readNodeWriteThreads(JsonReader reader) throws IOException {
+        String write = null;
+        String bulk = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("thread_pool") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String pool = reader.nextName();
+                    if (pool.equals("write")) {
+                        write = readStringField(reader, "size");
+                    } else if (pool.equals("bulk")) {
+                        bulk = readStringField(reader, "size");
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        String size = write != null ? write : bulk;
+        return size != null ? Integer.parseInt(size) : 0;
+    }
+
+    private static void readTaskCounters(JsonReader reader, TaskStatus status) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() != JsonToken.NUMBER) {
+                reader.skipValue();
+            } else if (name.equals("total")) {
+                status.total = reader.nextLong();
+            } else if (name.equals("created")) {
+                status.created = reader.nextLong();
+            } else if (name.equals("updated")) {
+                status.updated = reader.nextLong();
+            } else if (name.equals("deleted")) {
+                status.deleted = reader.nextLong();
+            } else if (name.equals("version_conflicts")) {
+                status.versionConflicts = reader.nextLong();
+            } else if (name.equals("requests_per_second")) {
+                status.requestsPerSecond = (float) reader.nextDouble();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static void readNodeStats(JsonReader reader, NodeLoad load) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+            } else if (name.equals("os")) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (reader.nextName().equals("cpu")) {
+                        String percent = readStringField(reader, "percent");
+                        if (percent != null) {
+                            load.maxCpuPercent = Math.max(load.maxCpuPercent, Integer.parseInt(percent));
+                        }
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (name.equals("thread_pool")) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String pool = reader.nextName();
+                    if ((pool.equals("write") || pool.equals("bulk")) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            String field = reader.nextName();
+                            if (field.equals("queue") && reader.peek() == JsonToken.NUMBER) {
+                                load.writeQueue += reader.nextLong();
+                            } else if (field.equals("rejected") && reader.peek() == JsonToken.NUMBER) {
+                                load.writeRejected += reader.nextLong();
+                            } else {
+                                reader.skipValue();
+                            }
+                        }
+                        reader.endObject();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (name.equals("indices")) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (reader.nextName().equals("indexing") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            String field = reader.nextName();
+                            if (field.equals("index_total") && reader.peek() == JsonToken.NUMBER) {
+                                load.indexTotal += reader.nextLong();
+                            } else if (field.equals("index_time_in_millis") && reader.peek() == JsonToken.NUMBER) {
+                                load.indexTimeMs += reader.nextLong();
+                            } else {
+                                reader.skipValue();
+                            }
+                        }
+                        reader.endObject();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+}
@@ -0,0 +1,108 @@
+package org.estf.gradle;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.UUID;
+
+/**
+ * LocalDeployments
+ *
+ * Stand-in for the cloud deployments api, so the deployment pool can be tried and timed
+ * without cloud access. A deployment is a file holding the time it was requested, and runs
+ * once its start time has passed. Requests take ESTF_LOCAL_DEPLOYMENT_CREATE_MS (default 500)
+ * and deployments start after ESTF_LOCAL_DEPLOYMENT_START_SECONDS (default 30). The returned
+ * properties point at ESTF_LOCAL_ES_URL and ESTF_LOCAL_KIBANA_URL, default localhost. The files
+ * are kept in ESTF_LOCAL_DEPLOYMENT_DIR, default ~/.estf/local-deployments, so builds share them.
+ */
+public class LocalDeployments implements DeploymentPool.Provisioner {
+
+    static final int DEFAULT_CREATE_MS = 500;
+    static final int DEFAULT_START_SECONDS = 30;
+    static final long CHECK_INTERVAL_MS = 1000;
+
+    private final File dir;
+    private final long createMs;
+    private final long startMs;
+
+    public LocalDeployments(File dir, long createMs, long startMs) {
+        this.dir = dir;
+        this.createMs = createMs;
+        this.startMs = startMs;
+    }
+
+    public LocalDeployments(File dir) {
+        this(dir, RetryPolicy.getEnvInt("ESTF_LOCAL_DEPLOYMENT_CREATE_MS", DEFAULT_CREATE_MS),
+             RetryPolicy.getEnvInt("ESTF_LOCAL_DEPLOYMENT_START_SECONDS", DEFAULT_START_SECONDS) * 1000L);
+    }
+
+    public static File getDefaultDir() {
+        String dir = System.getenv("ESTF_LOCAL_DEPLOYMENT_DIR");
+        if (dir == null || dir.trim().isEmpty()) {
+            dir = System.getProperty("user.home") + File.separator + ".estf" + File.separator + "local-deployments";
+        }
+        return new File(dir.trim());
+    }
+
+    @Override
+    public Properties create() throws IOException {
+        sleep(createMs);
+        String deploymentId = UUID.randomUUID().toString().replace("-", "");
+        DatasetCache.mkdirs(dir);
+        Files.write(file(deploymentId).toPath(),
+                    String.valueOf(System.currentTimeMillis()).getBytes(StandardCharsets.UTF_8));
+
+        Properties properties = new Properties();
+        properties.setProperty("deployment_id", deploymentId);
+        properties.setProperty("elasticsearch_cluster_id", "es" + deploymentId);
+        properties.setProperty("es_username", "elastic");
+        properties.setProperty("es_password", UUID.randomUUID().toString());
+        properties.setProperty("kibana_cluster_id", "kb" + deploymentId);
+        properties.setProperty("elasticsearch_url", getEnv("ESTF_LOCAL_ES_URL", "http://localhost:9200"));
+        properties.setProperty("kibana_url", getEnv("ESTF_LOCAL_KIBANA_URL", "http://localhost:5601"));
+        return properties;
+    }
+
+    @Override
+    public boolean isRunning(String deploymentId) throws IOException {
+        File file = file(deploymentId);
+        if (! file.isFile()) {
+            throw new IOException("Local deployment " + deploymentId + " not found");
+        }
+        long created = Long.parseLong(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim());
+        return System.currentTimeMillis() - created >= startMs;
+    }
+
+    @Override
+    public void awaitRunning(String deploymentId) throws IOException {
+        while (! isRunning(deploymentId)) {
+            sleep(CHECK_INTERVAL_MS);
+        }
+    }
+
+    @Override
+    public void shutdown(String deploymentId) throws IOException {
+        Files.deleteIfExists(file(deploymentId).toPath());
+    }
+
+    private File file(String deploymentId) {
+        return new File(dir, deploymentId);
+    }
+
+    private static String getEnv(String name, String defaultValue) {
+        String value = System.getenv(name);
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+
+    private static void sleep(long ms) throws InterruptedIOException {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for local deployment");
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package org.estf.gradle;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * MigrationScheduler
+ *
+ * Runs the migration of several indices at once, largest index first so the long ones
+ * do not end up running alone at the end. Internal indices, whose names start with a dot,
+ * are migrated first and one at a time. A failed index does not stop the others, all
+ * failures are reported once every index has had its turn.
+ *
+ * The number of migrations at a time is ESTF_MIGRATION_CONCURRENCY, default 4, but never
+ * more than the write threads the cluster has, each migration keeps at least one busy.
+ */
+public class MigrationScheduler {
+
+    static final int DEFAULT_CONCURRENCY = 4;
+
+    private final RestApi api;
+    private final String esBaseUrl;
+
+    public MigrationScheduler(RestApi api, String esBaseUrl) {
+        this.api = api;
+        this.esBaseUrl = esBaseUrl;
+    }
+
+    public interface Migration {
+        void migrate(String index) throws IOException, InterruptedException;
+    }
+
+    static class Result {
+        final String index;
+        final long sizeBytes;
+        long millis;
+        Throwable failure;
+
+        Result(String index, long sizeBytes) {
+            this.index = index;
+            this.sizeBytes = sizeBytes;
+        }
+    }
+
+    public void run(List<String> indices, Migration migration) throws IOException, InterruptedException {
+        if (indices.isEmpty()) {
+            return;
+        }
+        Map<String, Long> sizes = getIndexSizes();
+        List<Result> internal = new ArrayList<>();
+        List<Result> user = new ArrayList<>();
+        for (String index : indices) {
+            Result result = new Result(index, sizes.getOrDefault(index, 0L));
+            (isInternal(index) ? internal : user).add(result);
+        }
+        user.sort((a, b) -> Long.compare(b.sizeBytes, a.sizeBytes));
+        List<Result> results = new ArrayList<>(internal);
+        results.addAll(user);
+
+        long start = System.currentTimeMillis();
+        if (! internal.isEmpty()) {
+            System.out.println("Migrating " + internal.size() + " internal indices one at a time");
+            for (Result result : internal) {
+                migrate(result, migration);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException("Interrupted while migrating " + result.index);
+                }
+            }
+        }
+        if (! user.isEmpty()) {
+            int concurrency = Math.min(getConcurrency(), user.size());
+            System.out.println("Migrating " + user.size() + " indices, " + concurrency + " at a time");
+            ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (Result result : user) {
+                    futures.add(executor.submit(() -> migrate(result, migration)));
+                }
+                for (Future<?> future : futures) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        throw new IOException("Migration scheduler failed", e.getCause());
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        List<String> failed = new ArrayList<>();
+        System.out.println(String.format("Migrated %d indices in %d ms", results.size(),
+                                         System.currentTimeMillis() - start));
+        for (Result result : results) {
+            System.out.println(String.format("  %-50s %12d bytes %8d ms  %s", result.index, result.sizeBytes,
+                                             result.millis, result.failure == null ? "OK" : "FAILED"));
+            RequestMetrics.recordTask("migrate " + result.index, result.millis);
+            if (result.failure != null) {
+                failed.add(result.index + ": " + result.failure.getMessage());
+            }
+        }
+        if (! failed.isEmpty()) {
+            throw new IOException("Migration failed for " + failed.size() + " of " + results.size() +
+                                  " indices! " + String.join(", ", failed));
+        }
+    }
+
+    /**
+     * System indices, like .security, .watches and .triggered_watches. Their migration stops and
+     * starts the features using them, so it must not overlap with any other migration.
+     */
+    static boolean isInternal(String index) {
+        return index.startsWith(".");
+    }
+
+    private static void migrate(Result result, Migration migration) {
+        long indexStart = System.currentTimeMillis();
+        try {
+            migration.migrate(result.index);
+        } catch (Exception | Error e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            result.failure = e;
+            System.err.println("Warning migration of " + result.index + " failed: " + e.getMessage());
+        } finally {
+            result.millis = System.currentTimeMillis() - indexStart;
+        }
+    }
+
+    /**
+     * The configured concurrency, capped by the write threads of the cluster
+     */
+    int getConcurrency() {
+        int concurrency = Math.max(1, RetryPolicy.getEnvInt("ESTF_MIGRATION_CONCURRENCY", DEFAULT_CONCURRENCY));
+        try {
+            int writeThreads = api.get(esBaseUrl + "/_nodes/thread_pool", JsonResponses::readWriteThreads);
+            if (writeThreads > 0 && writeThreads < concurrency) {
+                System.out.println("Cluster has " + writeThreads + " write threads, limiting concurrency from " +
+                                   concurrency);
+                return writeThreads;
+            }
+        } catch (IOException e) {
+            System.err.println("Warning unable to read thread pools, using concurrency " + concurrency + ": " +
+                               e.getMessage());
+        }
+        return concurrency;
+    }
+
+    Map<String, Long> getIndexSizes() {
+        try {
+            return api.get(esBaseUrl + "/_cat/indices?format=json&bytes=b&h=index,store.size",
+                           JsonResponses::readIndexSizes);
+        } catch (IOException e) {
+            System.err.println("Warning unable to read index sizes, keeping the given order: " + e.getMessage());
+            return Collections.emptyMap();
+        }
+    }
+}
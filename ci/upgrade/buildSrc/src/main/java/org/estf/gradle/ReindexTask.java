@@ -0,0 +1,149 @@
+package org.estf.gradle;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * ReindexTask
+ *
+ * A reindex started in the background and followed through the tasks api with short
+ * requests, so no request stays open for the whole copy. Progress is printed on every
+ * check. The throttle can be changed while it runs by writing requests per second, or
+ * -1 for unlimited, to the file named by ESTF_REINDEX_THROTTLE_FILE.
+ */
+public class ReindexTask {
+
+    static final long CHECK_INTERVAL_MS = 2000;
+    static final long DEFAULT_TIMEOUT_MINUTES = 60;
+
+    private final RestApi api;
+    private final String esBaseUrl;
+    private final String taskId;
+    private final Path throttleFile;
+    private String throttle;
+    private ReindexThrottle controller;
+
+    private ReindexTask(RestApi api, String esBaseUrl, String taskId) {
+        this.api = api;
+        this.esBaseUrl = esBaseUrl;
+        this.taskId = taskId;
+        String file = System.getenv("ESTF_REINDEX_THROTTLE_FILE");
+        this.throttleFile = file != null && ! file.trim().isEmpty() ? Paths.get(file.trim()) : null;
+    }
+
+    /**
+     * Start a reindex, the kibana index it copies has a single shard so it is not sliced
+     */
+    public static ReindexTask start(RestApi api, String esBaseUrl, String body) throws IOException {
+        String taskId = api.post(esBaseUrl + "/_reindex?wait_for_completion=false", body, false,
+                                 JsonResponses::readTaskId);
+        if (taskId == null) {
+            throw new IOException("FAILED! Reindex did not return a task");
+        }
+        System.out.println("Reindex running as task " + taskId);
+        return new ReindexTask(api, esBaseUrl, taskId);
+    }
+
+    /**
+     * Let the throttle controller set the speed, until a throttle is written to the throttle file
+     */
+    public ReindexTask withThrottle(ReindexThrottle controller) {
+        this.controller = controller;
+        return this;
+    }
+
+    public String getTaskId() {
+        return taskId;
+    }
+
+    /**
+     * Poll the task until it completes, fails or times out, a timed out task is cancelled
+     */
+    public JsonResponses.TaskStatus waitForCompletion() throws IOException, InterruptedException {
+        long timeoutMs = RetryPolicy.getEnvInt("ESTF_REINDEX_TIMEOUT_MINUTES", (int) DEFAULT_TIMEOUT_MINUTES) * 60000L;
+        long start = System.currentTimeMillis();
+        if (controller != null) {
+            controller.register(taskId);
+        }
+        try {
+            return poll(start, timeoutMs);
+        } finally {
+            if (controller != null) {
+                controller.unregister(taskId);
+            }
+        }
+    }
+
+    private JsonResponses.TaskStatus poll(long start, long timeoutMs) throws IOException, InterruptedException {
+        long lastTime = start;
+        long lastDone = 0;
+        while (true) {
+            JsonResponses.TaskStatus status = api.get(esBaseUrl + "/_tasks/" + taskId,
+                                                      JsonResponses::readTaskStatus);
+            long now = System.currentTimeMillis();
+            long done = status.getDone();
+            double rate = (done - lastDone) * 1000.0 / Math.max(now - lastTime, 1);
+            System.out.println(String.format("Reindex %s: %d/%d docs, %.0f docs/s%s", taskId, done, status.total,
+                                             rate, status.requestsPerSecond > 0 ?
+                                                     ", throttled to " + status.requestsPerSecond + " req/s" : ""));
+            lastDone = done;
+            lastTime = now;
+            if (status.error != null) {
+                throw new IOException("Reindex task " + taskId + " failed! " + status.error);
+            }
+            if (status.completed) {
+                if (status.failures > 0) {
+                    throw new IOException("Reindex task " + taskId + " failed! " + status.failures + " failures");
+                }
+                System.out.println(String.format("Reindex %s done: %d docs in %d ms", taskId, done, now - start));
+                return status;
+            }
+            if (now - start > timeoutMs) {
+                cancel();
+                throw new IOException("Reindex task " + taskId + " timed out after " + (now - start) + " ms");
+            }
+            checkThrottle();
+            Thread.sleep(CHECK_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * Change the speed of the running reindex, -1 removes the throttle
+     */
+    public void rethrottle(float requestsPerSecond) throws IOException {
+        String value = requestsPerSecond < 0 ? "-1" : String.valueOf(requestsPerSecond);
+        api.post(esBaseUrl + "/_reindex/" + taskId + "/_rethrottle?requests_per_second=" + value, "", false);
+        System.out.println("Reindex " + taskId + " rethrottled to " + value + " requests per second");
+    }
+
+    public void cancel() {
+        try {
+            api.post(esBaseUrl + "/_tasks/" + taskId + "/_cancel", "", false);
+        } catch (IOException e) {
+            System.err.println("Warning unable to cancel reindex task " + taskId + ": " + e.getMessage());
+        }
+    }
+
+    private void checkThrottle() {
+        if (throttleFile == null || ! Files.isRegularFile(throttleFile)) {
+            return;
+        }
+        try {
+            String value = new String(Files.readAllBytes(throttleFile), StandardCharsets.UTF_8).trim();
+            if (value.isEmpty() || value.equals(throttle)) {
+                return;
+            }
+            throttle = value;
+            if (controller != null) {
+                controller.unregister(taskId);
+                controller = null;
+            }
+            rethrottle(Float.parseFloat(value));
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Warning unable to rethrottle from " + throttleFile + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package org.estf.gradle;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ReindexThrottle
+ *
+ * Keeps running reindex tasks as fast as the cluster takes them. Tasks run unthrottled until
+ * the cluster shows pressure. Node stats are sampled on an interval: new write rejections, a
+ * high cpu, a long write queue or indexing latency well above the lowest seen throttle the tasks
+ * to half the indexing rate just observed, or halve the requests per second once throttled.
+ * Without pressure they go up by a fixed step (additive increase, multiplicative decrease), and
+ * the throttle is lifted again once it reaches the max. The budget is shared by all registered
+ * tasks. Every decision and the numbers behind it are added to the http metrics, per stack version.
+ *
+ * On unless ESTF_REINDEX_AUTOTHROTTLE is false, the interval is ESTF_REINDEX_THROTTLE_SECONDS.
+ */
+public class ReindexThrottle implements AutoCloseable {
+
+    static final int DEFAULT_INTERVAL_SECONDS = 5;
+    // Requests per second of tasks that are not throttled
+    static final float UNTHROTTLED = -1;
+    static final float MIN_RPS = 50;
+    static final float MAX_RPS = 50000;
+    static final float INCREASE_RPS = 500;
+    static final float DECREASE_FACTOR = 0.5f;
+    static final int CPU_HIGH_PERCENT = 90;
+    static final int QUEUE_HIGH_PER_NODE = 20;
+    static final double LATENCY_HIGH_FACTOR = 3.0;
+    static final long MIN_LATENCY_SAMPLE = 100;
+
+    private final RestApi api;
+    private final String esBaseUrl;
+    private final String version;
+    private final boolean enabled;
+    private final Set<String> tasks = ConcurrentHashMap.newKeySet();
+    private final JSONArray decisions = new JSONArray();
+    private final long start = System.currentTimeMillis();
+    private ScheduledExecutorService scheduler;
+
+    private float rps = UNTHROTTLED;
+    private JsonResponses.NodeLoad previous;
+    private long previousTime;
+    private double lowestLatencyMs = -1;
+
+    private ReindexThrottle(RestApi api, String esBaseUrl, String version, boolean enabled) {
+        this.api = api;
+        this.esBaseUrl = esBaseUrl;
+        this.version = version;
+        this.enabled = enabled;
+    }
+
+    public static ReindexThrottle start(RestApi api, String esBaseUrl, String version) {
+        boolean enabled = ! "false".equalsIgnoreCase(System.getenv("ESTF_REINDEX_AUTOTHROTTLE"));
+        ReindexThrottle throttle = new ReindexThrottle(api, esBaseUrl, version, enabled);
+        if (enabled) {
+            int interval = Math.max(1, RetryPolicy.getEnvInt("ESTF_REINDEX_THROTTLE_SECONDS",
+                                                             DEFAULT_INTERVAL_SECONDS));
+            throttle.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "reindex-throttle");
+                thread.setDaemon(true);
+                return thread;
+            });
+            throttle.scheduler.scheduleWithFixedDelay(throttle::tick, 0, interval, TimeUnit.SECONDS);
+        }
+        return throttle;
+    }
+
+    /**
+     * Put a running reindex task under control, it runs unthrottled until there is pressure,
+     * else it gets its share of the current budget
+     */
+    public synchronized void register(String taskId) {
+        if (enabled && taskId != null && tasks.add(taskId)) {
+            System.out.println("Reindex throttle: controlling task " + taskId);
+            if (rps != UNTHROTTLED) {
+                apply();
+            }
+        }
+    }
+
+    /**
+     * Release a task, the others get its share of the budget, unthrottled tasks need no update
+     */
+    public synchronized void unregister(String taskId) {
+        if (taskId != null && tasks.remove(taskId) && rps != UNTHROTTLED) {
+            apply();
+        }
+    }
+
+    synchronized void tick() {
+        try {
+            JsonResponses.NodeLoad load = api.get(esBaseUrl + "/_nodes/stats/os,thread_pool,indices",
+                                                  JsonResponses::readNodeLoad);
+            long now = System.currentTimeMillis();
+            if (previous != null) {
+                decide(load, now - previousTime);
+            }
+            previous = load;
+            previousTime = now;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Warning reindex throttle unable to read node stats: " + e.getMessage());
+        }
+    }
+
+    private void decide(JsonResponses.NodeLoad load, long intervalMs) {
+        long rejected = Math.max(0, load.writeRejected - previous.writeRejected);
+        long indexed = load.indexTotal - previous.indexTotal;
+        double latencyMs = indexed >= MIN_LATENCY_SAMPLE ?
+                (double) (load.indexTimeMs - previous.indexTimeMs) / indexed : -1;
+        if (latencyMs >= 0 && (lowestLatencyMs < 0 || latencyMs < lowestLatencyMs)) {
+            lowestLatencyMs = latencyMs;
+        }
+
+        String reason = null;
+        if (rejected > 0) {
+            reason = rejected + " write rejections";
+        } else if (load.maxCpuPercent >= CPU_HIGH_PERCENT) {
+            reason = "cpu " + load.maxCpuPercent + "%";
+        } else if (load.writeQueue > (long) QUEUE_HIGH_PER_NODE * Math.max(1, load.nodes)) {
+            reason = "write queue " + load.writeQueue;
+        } else if (latencyMs >= 0 && lowestLatencyMs > 0 && latencyMs > LATENCY_HIGH_FACTOR * lowestLatencyMs) {
+            reason = String.format("indexing latency %.2f ms, lowest %.2f ms", latencyMs, lowestLatencyMs);
+        }
+
+        String action = "hold";
+        float before = rps;
+        if (reason != null && ! tasks.isEmpty()) {
+            // The first throttle starts from the rate the cluster indexed at
+            float current = rps != UNTHROTTLED ? rps : indexed * 1000f / Math.max(1, intervalMs);
+            rps = Math.min(MAX_RPS, Math.max(MIN_RPS, current * DECREASE_FACTOR));
+            action = "decrease";
+        } else if (reason == null && ! tasks.isEmpty() && rps != UNTHROTTLED) {
+            rps = rps + INCREASE_RPS >= MAX_RPS ? UNTHROTTLED : rps + INCREASE_RPS;
+            action = rps == UNTHROTTLED ? "unthrottle" : "increase";
+            reason = "no pressure";
+        }
+        decisions.put(new JSONObject()
+                .put("elapsed_ms", System.currentTimeMillis() - start)
+                .put("action", action)
+                .put("reason", reason != null ? reason : tasks.isEmpty() ? "no tasks" : "unthrottled")
+                .put("rps", rps)
+                .put("tasks", tasks.size())
+                .put("cpu_percent", load.maxCpuPercent)
+                .put("write_queue", load.writeQueue)
+                .put("write_rejected", rejected)
+                .put("indexing_latency_ms", latencyMs));
+        if (rps != before) {
+            System.out.println(rps == UNTHROTTLED ? "Reindex throttle: unthrottled, " + reason :
+                               String.format("Reindex throttle: %s to %.0f requests/s, %s", action, rps, reason));
+            apply();
+        }
+    }
+
+    /**
+     * Rethrottle every task to its share, tasks that are gone are dropped. Called with the lock
+     * held so rethrottles of a decision and of a task coming or going do not interleave.
+     */
+    private void apply() {
+        List<String> current = new ArrayList<>(tasks);
+        if (current.isEmpty()) {
+            return;
+        }
+        String share = rps == UNTHROTTLED ? "-1" : String.valueOf(Math.max(1, rps / current.size()));
+        for (String taskId : current) {
+            try {
+                api.post(esBaseUrl + "/_reindex/" + taskId + "/_rethrottle?requests_per_second=" + share, "", false);
+            } catch (IOException e) {
+                System.out.println("Reindex throttle: dropping task " + taskId + ", " + e.getMessage());
+                tasks.remove(taskId);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdownNow();
+        scheduler = null;
+        synchronized (this) {
+            RequestMetrics.recordTimeline("reindex throttle " + version, new JSONObject()
+                    .put("version", version)
+                    .put("final_rps", rps)
+                    .put("decisions", decisions));
+        }
+    }
+}
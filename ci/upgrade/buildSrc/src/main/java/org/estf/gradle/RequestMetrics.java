@@ -0,0 +1,291 @@
+package org.estf.gradle;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * RequestMetrics
+ *
+ * Latency, size and status code of every http request made during the build, keyed by
+ * method and templated path, e.g. POST /api/upgrade_assistant/reindex/{index}.
+ */
+public class RequestMetrics {
+
+    private static final Map<String, EndpointStats> endpoints = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> taskMillis = Collections.synchronizedMap(new LinkedHashMap<>());
+    private static final Map<String, JSONObject> loads = Collections.synchronizedMap(new LinkedHashMap<>());
+    private static final Map<String, JSONObject> timelines = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    private static final Pattern ID_SEGMENT = Pattern.compile(
+            "^([0-9a-fA-F-]{16,}|[0-9]+|[\\w-]+:[0-9]+)$");
+
+    private RequestMetrics() {
+    }
+
+    static class EndpointStats {
+        final Histogram latencyMicros = new Histogram();
+        final Histogram responseBytes = new Histogram();
+        final Map<Integer, AtomicLong> statusCodes = new ConcurrentHashMap<>();
+        final AtomicLong bytesIn = new AtomicLong();
+        final AtomicLong bytesOut = new AtomicLong();
+    }
+
+    public static void record(HttpUriRequest request, int statusCode, long startNanos, long bytesIn) {
+        long bytesOut = 0;
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity != null) {
+                bytesOut = Math.max(0, entity.getContentLength());
+            }
+        }
+        record(request.getMethod(), request.getURI(), statusCode, startNanos, bytesOut, bytesIn);
+    }
+
+    private static void record(String method, URI uri, int statusCode, long startNanos,
+                               long bytesOut, long bytesIn) {
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        EndpointStats stats = endpoints.computeIfAbsent(method + " " + template(uri.getPath()),
+                                                        k -> new EndpointStats());
+        stats.latencyMicros.record(micros);
+        stats.responseBytes.record(Math.max(0, bytesIn));
+        stats.statusCodes.computeIfAbsent(statusCode, k -> new AtomicLong()).incrementAndGet();
+        stats.bytesIn.addAndGet(Math.max(0, bytesIn));
+        stats.bytesOut.addAndGet(Math.max(0, bytesOut));
+    }
+
+    /**
+     * Wall clock time of a build task, to tell api time apart from e.g. cloud provisioning.
+     * A name recorded several times, e.g. once per upgrade hop or per path, keeps all its times.
+     */
+    public static void recordTask(String name, long millis) {
+        Histogram times;
+        synchronized (taskMillis) {
+            times = taskMillis.computeIfAbsent(name, k -> new Histogram());
+        }
+        times.record(millis);
+    }
+
+    /**
+     * Throughput of a bulk load, with the mode it ran in so runs with and without fast load compare
+     */
+    public static void recordLoad(String name, boolean fastLoad, long docs, long bytes, long millis) {
+        double seconds = Math.max(millis, 1) / 1000.0;
+        loads.put(name, new JSONObject()
+                .put("fast_load", fastLoad)
+                .put("docs", docs)
+                .put("bytes", bytes)
+                .put("time_ms", millis)
+                .put("docs_per_sec", Math.round(docs / seconds))
+                .put("mb_per_sec", Math.round(bytes / (1024.0 * 1024.0) / seconds * 100) / 100.0));
+    }
+
+    /**
+     * Samples of a polled operation over time, see AdaptivePoller
+     */
+    public static void recordTimeline(String name, JSONObject timeline) {
+        timelines.put(name, timeline);
+    }
+
+    /**
+     * Replace the variable parts of a path (space, index, type, ids, snapshot repository and
+     * name) with placeholders
+     */
+    public static String template(String path) {
+        if (path == null || path.isEmpty()) {
+            return "/";
+        }
+        String[] segments = path.split("/");
+        StringBuilder sb = new StringBuilder();
+        boolean kibana = false;
+        boolean endpoint = false;
+        int esNames = 0;
+        for (int i = 1; i < segments.length; i++) {
+            String segment = segments[i];
+            String previous = segments[i - 1];
+            String value = segment;
+            if (i == 1 && segment.equals("s") && segments.length > 2) {
+                kibana = true;
+            } else if (i == 2 && previous.equals("s") && kibana) {
+                value = "{space}";
+            } else if (segment.equals("api") && !endpoint) {
+                kibana = true;
+                endpoint = true;
+            } else if (kibana) {
+                if (previous.equals("reindex") || ID_SEGMENT.matcher(segment).matches()) {
+                    value = previous.equals("reindex") ? "{index}" : "{id}";
+                }
+            } else if (segment.startsWith("_")) {
+                endpoint = true;
+            } else if (previous.equals("_snapshot")) {
+                value = "{repository}";
+            } else if (i > 2 && segments[i - 2].equals("_snapshot")) {
+                value = "{snapshot}";
+            } else if (!endpoint) {
+                value = esNames == 0 ? "{index}" : esNames == 1 ? "{type}" : "{id}";
+                esNames++;
+            } else if (previous.equals("upgrade") || ID_SEGMENT.matcher(segment).matches()) {
+                value = previous.equals("upgrade") ? "{index}" : "{id}";
+            }
+            sb.append('/').append(value);
+        }
+        return sb.length() == 0 ? "/" : sb.toString();
+    }
+
+    public static void reset() {
+        endpoints.clear();
+        taskMillis.clear();
+        loads.clear();
+        timelines.clear();
+    }
+
+    public static boolean isEmpty() {
+        return endpoints.isEmpty();
+    }
+
+    public static String summary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-62s %6s %9s %9s %9s %9s %10s %10s  %s%n", "ENDPOINT", "COUNT", "P50_MS",
+                                "P90_MS", "P99_MS", "MAX_MS", "BYTES_IN", "BYTES_OUT", "STATUS"));
+        for (Map.Entry<String, EndpointStats> entry : new TreeMap<>(endpoints).entrySet()) {
+            EndpointStats stats = entry.getValue();
+            Histogram latency = stats.latencyMicros;
+            sb.append(String.format("%-62s %6d %9.1f %9.1f %9.1f %9.1f %10d %10d  %s%n", entry.getKey(),
+                                    latency.getCount(), latency.percentile(50) / 1000.0,
+                                    latency.percentile(90) / 1000.0, latency.percentile(99) / 1000.0,
+                                    latency.getMax() / 1000.0, stats.bytesIn.get(), stats.bytesOut.get(),
+                                    new TreeMap<>(stats.statusCodes)));
+        }
+        synchronized (taskMillis) {
+            if (! taskMillis.isEmpty()) {
+                sb.append(String.format("%n%-62s %6s %10s %10s%n", "TASK", "COUNT", "TOTAL_S", "MAX_S"));
+                for (Map.Entry<String, Histogram> entry : taskMillis.entrySet()) {
+                    Histogram times = entry.getValue();
+                    sb.append(String.format("%-62s %6d %10.1f %10.1f%n", entry.getKey(), times.getCount(),
+                                            times.getSum() / 1000.0, times.getMax() / 1000.0));
+                }
+            }
+        }
+        synchronized (loads) {
+            if (! loads.isEmpty()) {
+                sb.append(String.format("%n%-62s %9s %10s %12s %10s%n", "LOAD", "FAST_LOAD", "DOCS",
+                                        "DOCS_PER_S", "MB_PER_S"));
+                for (Map.Entry<String, JSONObject> entry : loads.entrySet()) {
+                    JSONObject load = entry.getValue();
+                    sb.append(String.format("%-62s %9s %10d %12d %10.2f%n", entry.getKey(),
+                                            load.getBoolean("fast_load"), load.getLong("docs"),
+                                            load.getLong("docs_per_sec"), load.getDouble("mb_per_sec")));
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    public static JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        for (Map.Entry<String, EndpointStats> entry : new TreeMap<>(endpoints).entrySet()) {
+            EndpointStats stats = entry.getValue();
+            JSONObject statusCodes = new JSONObject();
+            for (Map.Entry<Integer, AtomicLong> status : stats.statusCodes.entrySet()) {
+                statusCodes.put(String.valueOf(status.getKey()), status.getValue().get());
+            }
+            json.put(entry.getKey(), new JSONObject()
+                    .put("latency_ms", stats.latencyMicros.toJson(1000.0))
+                    .put("response_bytes", stats.responseBytes.toJson(1.0))
+                    .put("status", statusCodes)
+                    .put("bytes_in", stats.bytesIn.get())
+                    .put("bytes_out", stats.bytesOut.get()));
+        }
+        JSONObject tasks = new JSONObject();
+        synchronized (taskMillis) {
+            for (Map.Entry<String, Histogram> entry : taskMillis.entrySet()) {
+                Histogram times = entry.getValue();
+                tasks.put(entry.getKey(), times.toJson(1.0).put("total", times.getSum()));
+            }
+        }
+        JSONObject loadJson = new JSONObject();
+        synchronized (loads) {
+            for (Map.Entry<String, JSONObject> entry : loads.entrySet()) {
+                loadJson.put(entry.getKey(), entry.getValue());
+            }
+        }
+        JSONObject timelineJson = new JSONObject();
+        synchronized (timelines) {
+            for (Map.Entry<String, JSONObject> entry : timelines.entrySet()) {
+                timelineJson.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return new JSONObject()
+                .put("endpoints", json)
+                .put("retries", RetryMetrics.toJson())
+                .put("tasks_ms", tasks)
+                .put("loads", loadJson)
+                .put("timelines", timelineJson);
+    }
+
+    public static void writeJson(File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (! dir.exists()) {
+            if (! dir.mkdirs()) {
+                throw new SecurityException("Unable to mkdir: " + dir);
+            }
+        }
+        Files.write(file.toPath(), toJson().toString(2).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Entity wrapper that counts the bytes read from its content
+     */
+    public static class CountingEntity extends HttpEntityWrapper {
+
+        private final AtomicLong count = new AtomicLong();
+
+        public CountingEntity(HttpEntity entity) {
+            super(entity);
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new FilterInputStream(super.getContent()) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) {
+                        count.incrementAndGet();
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) {
+                        count.addAndGet(n);
+                    }
+                    return n;
+                }
+            };
+        }
+
+        public long getCount() {
+            return Math.max(count.get(), getContentLength());
+        }
+    }
+}
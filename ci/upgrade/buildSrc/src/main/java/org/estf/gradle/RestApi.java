@@ -1,17 +1,24 @@
 package org.estf.gradle;
 
+import com.google.gson.stream.JsonReader;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.BufferedHttpEntity;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
 
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.Base64;
 
 /**
@@ -39,6 +46,70 @@ public class RestApi {
     }
 
     public HttpResponse post(String path, String jsonStr, Boolean postToKbn) throws IOException {
+        return execute(newPost(path, jsonStr, postToKbn), "POST", path);
+    }
+
+    public <T> T post(String path, String jsonStr, Boolean postToKbn, ResponseReader<T> reader) throws IOException {
+        return execute(newPost(path, jsonStr, postToKbn), "POST", path, reader);
+    }
+
+    public <T> T post(String path, HttpEntity entity, ResponseReader<T> reader) throws IOException {
+        HttpPost postRequest = new HttpPost(path);
+        postRequest.setHeader(HttpHeaders.AUTHORIZATION, basicAuthPayload);
+        System.out.println("** POST REQUEST **");
+        System.out.println("Path: " + path);
+        System.out.println("Payload: " + entity.getContentLength() + " bytes");
+        postRequest.setEntity(entity);
+        return execute(postRequest, "POST", path, reader);
+    }
+
+    public HttpResponse put(String path, String jsonStr, Boolean postToKbn) throws IOException {
+        return execute(newPut(path, jsonStr, postToKbn), "PUT", path);
+    }
+
+    public HttpResponse get(String path) throws IOException {
+        return execute(newGet(path), "GET", path);
+    }
+
+    public <T> T get(String path, ResponseReader<T> reader) throws IOException {
+        return execute(newGet(path), "GET", path, reader);
+    }
+
+    /**
+     * True when the resource is there, false on 404, any other failure is thrown
+     */
+    public boolean exists(String path) throws IOException {
+        HttpHead headRequest = new HttpHead(path);
+        headRequest.setHeader(HttpHeaders.AUTHORIZATION, basicAuthPayload);
+        System.out.println("** HEAD REQUEST **");
+        System.out.println("Path: " + path);
+        long start = System.nanoTime();
+        try (CloseableHttpResponse response = HttpClientPool.execute(headRequest)) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            RequestMetrics.record(headRequest, statusCode, start, 0);
+            if (statusCode == 404) {
+                return false;
+            }
+            if (statusCode != 200) {
+                throw new IOException("FAILED! HEAD: " + response.getStatusLine() + " " + path);
+            }
+            return true;
+        }
+    }
+
+    public HttpResponse delete(String path, Boolean postToKbn) throws IOException {
+        HttpDelete deleteRequest = new HttpDelete(path);
+        deleteRequest.setHeader(HttpHeaders.AUTHORIZATION, basicAuthPayload);
+        if (postToKbn) {
+            deleteRequest.setHeader("kbn-xsrf", "automation");
+        }
+        deleteRequest.setHeader(HttpHeaders.CONTENT_TYPE, "application/json");
+        System.out.println("** DELETE REQUEST **");
+        System.out.println("Path: " + path);
+        return execute(deleteRequest, "DELETE", path);
+    }
+
+    private HttpPost newPost(String path, String jsonStr, Boolean postToKbn) throws IOException {
         HttpPost postRequest = new HttpPost(path);
         postRequest.setHeader(HttpHeaders.AUTHORIZATION, basicAuthPayload);
         if (postToKbn) {
@@ -51,16 +122,10 @@ public class RestApi {
         StringEntity entity = new StringEntity(jsonStr);
         entity.setContentType(ContentType.APPLICATION_JSON.getMimeType());
         postRequest.setEntity(entity);
-        HttpClient client = HttpClientBuilder.create().build();
-        HttpResponse response = client.execute(postRequest);
-        int statusCode = response.getStatusLine().getStatusCode();
-        if (statusCode != 200) {
-            throw new IOException("FAILED! POST: " + response.getStatusLine() + " " + path);
-        }
-        return response;
+        return postRequest;
     }
 
-    public HttpResponse put(String path, String jsonStr, Boolean postToKbn) throws IOException {
+    private HttpPut newPut(String path, String jsonStr, Boolean postToKbn) throws IOException {
         HttpPut putRequest = new HttpPut(path);
         putRequest.setHeader(HttpHeaders.AUTHORIZATION, basicAuthPayload);
         if (postToKbn) {
@@ -73,46 +138,73 @@ public class RestApi {
         StringEntity entity = new StringEntity(jsonStr);
         entity.setContentType(ContentType.APPLICATION_JSON.getMimeType());
         putRequest.setEntity(entity);
-        HttpClient client = HttpClientBuilder.create().build();
-        HttpResponse response = client.execute(putRequest);
-        int statusCode = response.getStatusLine().getStatusCode();
-        if (statusCode != 200) {
-            throw new IOException("FAILED! PUT: " + response.getStatusLine() + " " + path);
-        }
-        return response;
+        return putRequest;
     }
 
-    public HttpResponse get(String path) throws IOException {
+    private HttpGet newGet(String path) {
         HttpGet getRequest = new HttpGet(path);
         getRequest.setHeader(HttpHeaders.AUTHORIZATION, basicAuthPayload);
         getRequest.setHeader(HttpHeaders.CONTENT_TYPE, "application/json");
         System.out.println("** GET REQUEST **");
         System.out.println("Path: " + path);
-        HttpClient client = HttpClientBuilder.create().build();
-        HttpResponse response = client.execute(getRequest);
-        int statusCode = response.getStatusLine().getStatusCode();
-        if (statusCode != 200) {
-            throw new IOException("FAILED! GET: " + response.getStatusLine() + " " + path);
+        return getRequest;
+    }
+
+    public AsyncRestApi async() {
+        return new AsyncRestApi(this);
+    }
+
+    private HttpResponse execute(HttpUriRequest request, String method, String path) throws IOException {
+        long start = System.nanoTime();
+        CloseableHttpResponse response = HttpClientPool.execute(request);
+        try {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode != 200) {
+                RequestMetrics.record(request, statusCode, start, 0);
+                throw new IOException("FAILED! " + method + ": " + response.getStatusLine() + " " + path);
+            }
+            // Buffer the body so the connection goes back to the pool right away
+            HttpEntity entity = response.getEntity();
+            long bytesIn = 0;
+            if (entity != null) {
+                BufferedHttpEntity bufferedEntity = new BufferedHttpEntity(entity);
+                bytesIn = bufferedEntity.getContentLength();
+                response.setEntity(bufferedEntity);
+            }
+            RequestMetrics.record(request, statusCode, start, bytesIn);
+            return response;
+        } finally {
+            EntityUtils.consumeQuietly(response.getEntity());
+            response.close();
         }
-        return response;
     }
 
-    public HttpResponse delete(String path, Boolean postToKbn) throws IOException {
-        HttpDelete deleteRequest = new HttpDelete(path);
-        deleteRequest.setHeader(HttpHeaders.AUTHORIZATION, basicAuthPayload);
-        if (postToKbn) {
-            deleteRequest.setHeader("kbn-xsrf", "automation");
+    private <T> T execute(HttpUriRequest request, String method, String path,
+                          ResponseReader<T> reader) throws IOException {
+        long start = System.nanoTime();
+        try (CloseableHttpResponse response = HttpClientPool.execute(request)) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode != 200) {
+                EntityUtils.consumeQuietly(response.getEntity());
+                RequestMetrics.record(request, statusCode, start, 0);
+                throw new IOException("FAILED! " + method + ": " + response.getStatusLine() + " " + path);
+            }
+            RequestMetrics.CountingEntity entity = new RequestMetrics.CountingEntity(response.getEntity());
+            T result = read(entity, reader);
+            RequestMetrics.record(request, statusCode, start, entity.getCount());
+            return result;
         }
-        deleteRequest.setHeader(HttpHeaders.CONTENT_TYPE, "application/json");
-        System.out.println("** DELETE REQUEST **");
-        System.out.println("Path: " + path);
-        HttpClient client = HttpClientBuilder.create().build();
-        HttpResponse response = client.execute(deleteRequest);
-        int statusCode = response.getStatusLine().getStatusCode();
-        if (statusCode != 200) {
-            throw new IOException("FAILED! DELETE: " + response.getStatusLine() + " " + path);
+    }
+
+    /**
+     * Stream the entity through the reader without materializing the body,
+     * closing the stream drains what is left and releases the connection
+     */
+    public static <T> T read(HttpEntity entity, ResponseReader<T> reader) throws IOException {
+        try (JsonReader jsonReader = new JsonReader(new InputStreamReader(entity.getContent(),
+                                                                           StandardCharsets.UTF_8))) {
+            return reader.read(jsonReader);
         }
-        return response;
     }
 
     private int parseMajorVersion(String version) {
@@ -148,4 +240,8 @@ public class RestApi {
         String credentials = username + ":" + password;
         this.basicAuthPayload = "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes());
     }
+
+    public interface ResponseReader<T> {
+        T read(JsonReader reader) throws IOException;
+    }
 }
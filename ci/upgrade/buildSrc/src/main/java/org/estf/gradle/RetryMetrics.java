@@ -0,0 +1,86 @@
+package org.estf.gradle;
+
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RetryMetrics
+ *
+ * Build wide counters of how often and how long requests were retried, per host.
+ */
+public class RetryMetrics {
+
+    private static final Map<String, HostStats> stats = new ConcurrentHashMap<>();
+
+    private RetryMetrics() {
+    }
+
+    static class HostStats {
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong attempts = new AtomicLong();
+        final AtomicLong retries = new AtomicLong();
+        final AtomicLong retryTimeMs = new AtomicLong();
+        final AtomicLong exhausted = new AtomicLong();
+        final AtomicLong circuitOpens = new AtomicLong();
+    }
+
+    private static HostStats get(String host) {
+        return stats.computeIfAbsent(host, h -> new HostStats());
+    }
+
+    public static void recordRequest(String host, int attempts, long retryTimeMs, boolean exhausted) {
+        HostStats hostStats = get(host);
+        hostStats.requests.incrementAndGet();
+        hostStats.attempts.addAndGet(attempts);
+        hostStats.retries.addAndGet(attempts - 1);
+        hostStats.retryTimeMs.addAndGet(retryTimeMs);
+        if (exhausted) {
+            hostStats.exhausted.incrementAndGet();
+        }
+    }
+
+    public static void recordCircuitOpen(String host) {
+        get(host).circuitOpens.incrementAndGet();
+    }
+
+    public static JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        for (Map.Entry<String, HostStats> entry : new TreeMap<>(stats).entrySet()) {
+            HostStats hostStats = entry.getValue();
+            json.put(entry.getKey(), new JSONObject()
+                    .put("requests", hostStats.requests.get())
+                    .put("attempts", hostStats.attempts.get())
+                    .put("retries", hostStats.retries.get())
+                    .put("retry_time_ms", hostStats.retryTimeMs.get())
+                    .put("exhausted", hostStats.exhausted.get())
+                    .put("circuit_opens", hostStats.circuitOpens.get()));
+        }
+        return json;
+    }
+
+    public static String summary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-60s %8s %8s %8s %10s %9s %6s%n", "HOST", "REQUESTS", "ATTEMPTS",
+                                "RETRIES", "RETRY_MS", "EXHAUSTED", "OPENS"));
+        for (Map.Entry<String, HostStats> entry : new TreeMap<>(stats).entrySet()) {
+            HostStats hostStats = entry.getValue();
+            sb.append(String.format("%-60s %8d %8d %8d %10d %9d %6d%n", entry.getKey(),
+                                    hostStats.requests.get(), hostStats.attempts.get(), hostStats.retries.get(),
+                                    hostStats.retryTimeMs.get(), hostStats.exhausted.get(),
+                                    hostStats.circuitOpens.get()));
+        }
+        return sb.toString();
+    }
+
+    public static void reset() {
+        stats.clear();
+    }
+
+    public static boolean isEmpty() {
+        return stats.isEmpty();
+    }
+}
@@ -0,0 +1,194 @@
+package org.estf.gradle;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * RetryPolicy
+ *
+ * Retries requests that failed for a transient reason, 429/502/503/504 or a connection
+ * error, with exponential backoff and jitter. A Retry-After header from the server wins
+ * over the computed backoff. Non idempotent requests are only retried when the server
+ * did not process them: 429, 503 or a failed connect.
+ *
+ * Defaults can be changed with ESTF_HTTP_MAX_ATTEMPTS and ESTF_HTTP_MAX_RETRY_SECONDS.
+ */
+public class RetryPolicy {
+
+    static final Set<Integer> RETRY_STATUS = new HashSet<>(Arrays.asList(429, 502, 503, 504));
+    static final Set<String> IDEMPOTENT_METHODS = new HashSet<>(Arrays.asList("GET", "HEAD", "PUT", "DELETE",
+                                                                              "OPTIONS"));
+
+    private static RetryPolicy defaultPolicy;
+
+    private final int maxAttempts;
+    private final long initialBackoffMs;
+    private final long maxBackoffMs;
+    private final long maxRetryTimeMs;
+
+    public RetryPolicy(int maxAttempts, long initialBackoffMs, long maxBackoffMs, long maxRetryTimeMs) {
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMs = initialBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+        this.maxRetryTimeMs = maxRetryTimeMs;
+    }
+
+    public static synchronized RetryPolicy getDefault() {
+        if (defaultPolicy == null) {
+            int maxAttempts = getEnvInt("ESTF_HTTP_MAX_ATTEMPTS", 6);
+            long maxRetryMs = getEnvInt("ESTF_HTTP_MAX_RETRY_SECONDS", 180) * 1000L;
+            defaultPolicy = new RetryPolicy(maxAttempts, 500, 30000, maxRetryMs);
+        }
+        return defaultPolicy;
+    }
+
+    public CloseableHttpResponse execute(CloseableHttpClient client, HttpUriRequest request) throws IOException {
+        URI uri = request.getURI();
+        String host = uri.getPort() != -1 ? uri.getHost() + ":" + uri.getPort() : uri.getHost();
+        CircuitBreaker breaker = CircuitBreaker.forHost(host);
+        boolean idempotent = IDEMPOTENT_METHODS.contains(request.getMethod());
+        boolean repeatable = isRepeatable(request);
+        long firstFailure = 0;
+        int attempt = 0;
+        while (true) {
+            attempt++;
+            waitForBreaker(breaker, host, firstFailure, attempt);
+
+            CloseableHttpResponse response;
+            try {
+                response = client.execute(request);
+            } catch (IOException e) {
+                breaker.onFailure();
+                firstFailure = firstFailure == 0 ? System.currentTimeMillis() : firstFailure;
+                boolean safe = idempotent || e instanceof ConnectException || e instanceof ConnectTimeoutException;
+                long delay = backoff(attempt, null);
+                if (!safe || !repeatable || !canRetry(attempt, firstFailure, delay)) {
+                    RetryMetrics.recordRequest(host, attempt, elapsed(firstFailure), safe && repeatable);
+                    throw e;
+                }
+                System.out.println("Retrying " + request.getMethod() + " " + uri + " in " + delay +
+                                   " ms, attempt " + attempt + " failed: " + e);
+                sleep(delay);
+                continue;
+            }
+
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (!RETRY_STATUS.contains(statusCode)) {
+                breaker.onSuccess();
+                RetryMetrics.recordRequest(host, attempt, elapsed(firstFailure), false);
+                return response;
+            }
+
+            breaker.onFailure();
+            firstFailure = firstFailure == 0 ? System.currentTimeMillis() : firstFailure;
+            boolean safe = idempotent || statusCode == 429 || statusCode == 503;
+            long delay = backoff(attempt, response);
+            if (!safe || !repeatable || !canRetry(attempt, firstFailure, delay)) {
+                // Hand the failed response back, the caller reports it as before
+                RetryMetrics.recordRequest(host, attempt, elapsed(firstFailure), safe && repeatable);
+                return response;
+            }
+            System.out.println("Retrying " + request.getMethod() + " " + uri + " in " + delay +
+                               " ms, attempt " + attempt + " got: " + response.getStatusLine());
+            EntityUtils.consumeQuietly(response.getEntity());
+            response.close();
+            sleep(delay);
+        }
+    }
+
+    long backoff(int attempt, HttpResponse response) {
+        long retryAfter = response != null ? parseRetryAfter(response) : -1;
+        if (retryAfter >= 0) {
+            return retryAfter;
+        }
+        double exponential = initialBackoffMs * Math.pow(2, attempt - 1);
+        long cap = (long) Math.min(maxBackoffMs, exponential);
+        // Equal jitter: keep half of the backoff, randomize the other half
+        return cap / 2 + ThreadLocalRandom.current().nextLong(cap / 2 + 1);
+    }
+
+    private boolean canRetry(int attempt, long firstFailure, long delay) {
+        return attempt < maxAttempts && elapsed(firstFailure) + delay <= maxRetryTimeMs;
+    }
+
+    private void waitForBreaker(CircuitBreaker breaker, String host, long firstFailure,
+                                int attempt) throws IOException {
+        long wait = breaker.acquire();
+        while (wait > 0) {
+            if (elapsed(firstFailure) + wait > maxRetryTimeMs) {
+                RetryMetrics.recordRequest(host, attempt, elapsed(firstFailure), true);
+                throw new IOException("FAILED! Circuit open for host: " + host);
+            }
+            sleep(wait);
+            wait = breaker.acquire();
+        }
+    }
+
+    private static long parseRetryAfter(HttpResponse response) {
+        Header header = response.getFirstHeader(HttpHeaders.RETRY_AFTER);
+        if (header == null || header.getValue() == null) {
+            return -1;
+        }
+        String value = header.getValue().trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException ignored) {}
+        Date date = DateUtils.parseDate(value);
+        if (date == null) {
+            return -1;
+        }
+        return Math.max(0, date.getTime() - System.currentTimeMillis());
+    }
+
+    private static boolean isRepeatable(HttpUriRequest request) {
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            return entity == null || entity.isRepeatable();
+        }
+        return true;
+    }
+
+    private static long elapsed(long since) {
+        return since == 0 ? 0 : System.currentTimeMillis() - since;
+    }
+
+    private static void sleep(long ms) throws InterruptedIOException {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry");
+        }
+    }
+
+    static int getEnvInt(String name, int defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package org.estf.gradle;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SeedSnapshot
+ *
+ * Seeds a deployment from a snapshot of the data an earlier run uploaded for the same stack
+ * version, instead of indexing it again. The first run for a version uploads the data as
+ * usual and snapshots the seeded indices and the kibana index, later runs register the same
+ * repository and restore them, all shards at once. The ingest time, docs and bytes of the
+ * first run are kept in the snapshot, so restores print how they compare.
+ *
+ * The repository is ESTF_SEED_REPOSITORY, default estf-seed. It is registered as a shared file
+ * system repository at ESTF_SEED_REPO_LOCATION, which must be listed in path.repo of every node,
+ * or from the repository body in ESTF_SEED_REPO_SETTINGS, e.g. a bucket. Without either an
+ * already registered repository of that name is used. Runs that restore register it read only.
+ *
+ * Kibana's own indices are closed, replaced and restored while it runs, so kibana is restarted
+ * once they are back. It then reads the restored saved objects and migrates them when needed.
+ */
+public class SeedSnapshot {
+
+    // Patterns only, requests for them do not fail when one of them matches nothing. Covers
+    // the indices the upgrade assistant reindexes, so an upgraded deployment can be copied too.
+    static final String INDICES = "bank*,kibana_sample_data_*,.kibana*,reindexed-v*,.reindexed-v*";
+    static final String STATS_INDEX = "estf-seed-stats";
+    static final String DEFAULT_REPOSITORY = "estf-seed";
+
+    private final RestApi api;
+    private final String esBaseUrl;
+    private final String version;
+    private final String repository;
+    private final String snapshot;
+
+    public interface KibanaRestart {
+        void run() throws IOException;
+    }
+
+    public SeedSnapshot(RestApi api, String esBaseUrl, String version) {
+        this(api, esBaseUrl, version, "seed-" + version);
+    }
+
+    public SeedSnapshot(RestApi api, String esBaseUrl, String version, String snapshot) {
+        this.api = api;
+        this.esBaseUrl = esBaseUrl;
+        this.version = version;
+        String repository = System.getenv("ESTF_SEED_REPOSITORY");
+        this.repository = repository != null && ! repository.trim().isEmpty() ? repository.trim() : DEFAULT_REPOSITORY;
+        this.snapshot = snapshot.toLowerCase();
+    }
+
+    /**
+     * Restore the seed snapshot of the version, false when there is none yet. Kibana is restarted
+     * when any of its indices were restored.
+     */
+    public boolean restore(KibanaRestart restartKibana) throws IOException {
+        if (! register(true)) {
+            return false;
+        }
+        JsonResponses.Snapshot seed = api.get(esBaseUrl + "/_snapshot/" + repository + "/_all",
+                                              JsonResponses::readSnapshots).get(snapshot);
+        if (seed == null || ! "SUCCESS".equals(seed.state)) {
+            System.out.println("Seed snapshot " + repository + "/" + snapshot + " not found" +
+                               (seed != null ? ", state: " + seed.state : ""));
+            return false;
+        }
+        long start = System.currentTimeMillis();
+
+        // Indices the deployment created on its own, like the kibana index, are replaced. Those
+        // the snapshot does not have are deleted, they may hold the aliases of the restored ones.
+        List<String> existing = new ArrayList<>(getIndexSizes().keySet());
+        List<String> replaced = new ArrayList<>(existing);
+        replaced.retainAll(seed.indices);
+        existing.removeAll(seed.indices);
+        if (! existing.isEmpty()) {
+            api.delete(esBaseUrl + "/" + String.join(",", existing), false);
+        }
+        if (! replaced.isEmpty()) {
+            api.post(esBaseUrl + "/" + String.join(",", replaced) + "/_close", "{}", false);
+        }
+        api.post(esBaseUrl + "/_snapshot/" + repository + "/" + snapshot + "/_restore",
+                 new JSONObject().put("include_global_state", false).toString(), false);
+        awaitRecovery(String.join(",", seed.indices), seed.indices.size());
+        for (String index : seed.indices) {
+            if (isKibanaIndex(index)) {
+                restartKibana.run();
+                break;
+            }
+        }
+        long millis = System.currentTimeMillis() - start;
+
+        // Fork snapshots have no stats, nothing was uploaded to them
+        Map<String, String> stats = null;
+        if (seed.indices.contains(STATS_INDEX)) {
+            stats = readStats();
+            api.delete(esBaseUrl + "/" + STATS_INDEX, false);
+        }
+        long docs = countDocs();
+        long bytes = sumBytes();
+        RequestMetrics.recordLoad("seed restore " + version, false, docs, bytes, millis);
+        String compare = "";
+        if (stats != null && stats.containsKey("ingest_ms")) {
+            long ingestMs = Long.parseLong(stats.get("ingest_ms"));
+            compare = String.format(", ingest took %d ms for %s docs and %s bytes, %.1fx faster", ingestMs,
+                                    stats.get("docs"), stats.get("bytes"), ingestMs / (double) Math.max(1, millis));
+        }
+        System.out.println("Restored seed snapshot " + repository + "/" + snapshot + ": " + docs + " docs, " +
+                           bytes + " bytes in " + millis + " ms" + compare);
+        return true;
+    }
+
+    /**
+     * Snapshot the data just uploaded, so later runs of the version restore it. False when there
+     * is no repository to write to.
+     */
+    public boolean create(boolean fastLoad, long ingestMillis) throws IOException {
+        if (! register(false)) {
+            System.err.println("Warning no seed repository, set ESTF_SEED_REPO_LOCATION or ESTF_SEED_REPO_SETTINGS");
+            return false;
+        }
+        api.post(esBaseUrl + "/_refresh", "{}", false);
+        long docs = countDocs();
+        long bytes = sumBytes();
+        RequestMetrics.recordLoad("seed ingest " + version, fastLoad, docs, bytes, ingestMillis);
+
+        replacePrevious();
+        writeStats(docs, bytes, ingestMillis);
+        try {
+            take(INDICES + "," + STATS_INDEX, docs + " docs, " + bytes + " bytes");
+        } finally {
+            api.delete(esBaseUrl + "/" + STATS_INDEX, false);
+        }
+        return true;
+    }
+
+    /**
+     * Snapshot the data of a deployment that was upgraded rather than uploaded, e.g. where upgrade
+     * paths fork, for the deployments of the other branches to restore. Records no load and keeps
+     * no ingest stats, as no data was uploaded. False when there is no repository to write to.
+     */
+    public boolean createFork() throws IOException {
+        if (! register(false)) {
+            System.err.println("Warning no seed repository, set ESTF_SEED_REPO_LOCATION or ESTF_SEED_REPO_SETTINGS");
+            return false;
+        }
+        api.post(esBaseUrl + "/_refresh", "{}", false);
+        replacePrevious();
+        take(INDICES, countDocs() + " docs, " + sumBytes() + " bytes");
+        return true;
+    }
+
+    private void replacePrevious() throws IOException {
+        JsonResponses.Snapshot previous = api.get(esBaseUrl + "/_snapshot/" + repository + "/_all",
+                                                  JsonResponses::readSnapshots).get(snapshot);
+        if (previous != null) {
+            System.out.println("Replacing seed snapshot " + repository + "/" + snapshot + ", state: " +
+                               previous.state);
+            api.delete(esBaseUrl + "/_snapshot/" + repository + "/" + snapshot, false);
+        }
+    }
+
+    private void take(String indices, String contents) throws IOException {
+        long start = System.currentTimeMillis();
+        api.put(esBaseUrl + "/_snapshot/" + repository + "/" + snapshot + "?wait_for_completion=false",
+                new JSONObject()
+                        .put("indices", indices)
+                        .put("ignore_unavailable", true)
+                        .put("include_global_state", false).toString(), false);
+        awaitSnapshot();
+        System.out.println("Created seed snapshot " + repository + "/" + snapshot + " of " + contents + " in " +
+                           (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Remove the snapshot from the repository
+     */
+    public void delete() throws IOException {
+        api.delete(esBaseUrl + "/_snapshot/" + repository + "/" + snapshot, false);
+    }
+
+    /**
+     * Register the repository when it is configured, else check it is registered already
+     */
+    private boolean register(boolean readonly) throws IOException {
+        String location = System.getenv("ESTF_SEED_REPO_LOCATION");
+        String settings = System.getenv("ESTF_SEED_REPO_SETTINGS");
+        JSONObject body;
+        if (location != null && ! location.trim().isEmpty()) {
+            body = new JSONObject()
+                    .put("type", "fs")
+                    .put("settings", new JSONObject().put("location", location.trim()));
+        } else if (settings != null && ! settings.trim().isEmpty()) {
+            body = new JSONObject(settings.trim());
+        } else {
+            try {
+                api.get(esBaseUrl + "/_snapshot/" + repository);
+                return true;
+            } catch (IOException e) {
+                System.out.println("Seed repository " + repository + " not registered: " + e.getMessage());
+                return false;
+            }
+        }
+        if (! body.has("settings")) {
+            body.put("settings", new JSONObject());
+        }
+        // One cluster writes to a shared repository, the others only read it
+        body.getJSONObject("settings").put("readonly", readonly);
+        api.put(esBaseUrl + "/_snapshot/" + repository, body.toString(), false);
+        return true;
+    }
+
+    static boolean isKibanaIndex(String index) {
+        return index.startsWith(".kibana");
+    }
+
+    private void awaitSnapshot() throws IOException {
+        AdaptivePoller poller = new AdaptivePoller("Seed snapshot " + snapshot);
+        while (true) {
+            JsonResponses.SnapshotStatus status = api.get(esBaseUrl + "/_snapshot/" + repository + "/" + snapshot +
+                                                          "/_status", JsonResponses::readSnapshotStatus);
+            if ("SUCCESS".equals(status.state)) {
+                poller.finish("done");
+                return;
+            }
+            if (status.state == null || status.state.equals("FAILED") || status.state.equals("ABORTED") ||
+                status.state.equals("PARTIAL") || status.state.equals("MISSING")) {
+                poller.finish("failed");
+                throw new IOException("FAILED! Seed snapshot " + snapshot + ", state: " + status.state);
+            }
+            await(poller, status.state, status.done, status.total > 0 ? status.done / (double) status.total : -1);
+        }
+    }
+
+    private void awaitRecovery(String indices, int count) throws IOException {
+        AdaptivePoller poller = new AdaptivePoller("Seed restore " + snapshot);
+        while (true) {
+            JsonResponses.RecoveryStatus status = api.get(esBaseUrl + "/" + indices + "/_recovery",
+                                                          JsonResponses::readRecovery);
+            if (status.indices >= count && status.shards > 0 && status.done == status.shards) {
+                poller.finish("done");
+                return;
+            }
+            await(poller, status.done + "/" + status.shards + " shards", status.done + status.recoveredBytes,
+                  status.totalBytes > 0 ? status.recoveredBytes / (double) status.totalBytes : -1);
+        }
+    }
+
+    private static void await(AdaptivePoller poller, String state, double progress, double fraction)
+            throws IOException {
+        try {
+            poller.await(state, progress, fraction);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            poller.finish("interrupted");
+            throw new InterruptedIOException("Interrupted while waiting for seed snapshot");
+        }
+    }
+
+    private long countDocs() throws IOException {
+        return api.get(esBaseUrl + "/" + INDICES + "/_count", JsonResponses::readCount);
+    }
+
+    private long sumBytes() throws IOException {
+        long bytes = 0;
+        for (long size : getIndexSizes().values()) {
+            bytes += size;
+        }
+        return bytes;
+    }
+
+    private Map<String, Long> getIndexSizes() throws IOException {
+        return api.get(esBaseUrl + "/_cat/indices/" + INDICES + "?format=json&bytes=b&h=index,store.size",
+                       JsonResponses::readIndexSizes);
+    }
+
+    private void writeStats(long docs, long bytes, long ingestMillis) throws IOException {
+        // Types are still required before 7, and no longer accepted from 8
+        JSONObject action = new JSONObject().put("_index", STATS_INDEX).put("_id", "1");
+        if (api.getMajorVersion() < 7) {
+            action.put("_type", "doc");
+        }
+        String body = new JSONObject().put("index", action) + "\n" +
+                      new JSONObject()
+                              .put("version", version)
+                              .put("docs", docs)
+                              .put("bytes", bytes)
+                              .put("ingest_ms", ingestMillis)
+                              .put("created", System.currentTimeMillis()) + "\n";
+        List<String> errors = api.post(esBaseUrl + "/_bulk?refresh=true",
+                                       new StringEntity(body, ContentType.create("application/x-ndjson",
+                                                                                 StandardCharsets.UTF_8)),
+                                       JsonResponses::readBulkErrors);
+        if (! errors.isEmpty()) {
+            throw new IOException("FAILED! Unable to write seed stats: " + errors.get(0));
+        }
+    }
+
+    private Map<String, String> readStats() {
+        try {
+            List<Map<String, String>> hits = api.get(esBaseUrl + "/" + STATS_INDEX + "/_search",
+                                                     JsonResponses::readHitSources);
+            return hits.isEmpty() ? null : hits.get(0);
+        } catch (IOException e) {
+            System.err.println("Warning unable to read seed stats: " + e.getMessage());
+            return null;
+        }
+    }
+}
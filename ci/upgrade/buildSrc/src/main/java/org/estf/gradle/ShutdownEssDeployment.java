@@ -1,8 +1,6 @@
 package org.estf.gradle;
 
-import co.elastic.cloud.api.client.generated.DeploymentsApi;
 import com.bettercloud.vault.VaultException;
-import io.swagger.client.ApiClient;
 import org.gradle.api.DefaultTask;
 import org.gradle.api.tasks.TaskAction;
 import org.gradle.api.tasks.Input;
@@ -20,23 +18,23 @@ public class ShutdownEssDeployment extends DefaultTask {
     @Input
     public String deploymentId = null;
 
+    @Input
+    public boolean localDeployments = false;
+
+    // Removed with the deployment it points at
+    @Input
+    public String checkpointFile;
+
     @TaskAction
     public void run() throws IOException, VaultException {
         if (deploymentId == null || deploymentId.trim().isEmpty()) {
             throw new Error(this.getClass().getSimpleName() + ": deploymentId is required input");
         }
 
-        CloudApi cloudApi = new CloudApi();
-        ApiClient apiClient = cloudApi.getApiClient();
-        DeploymentsApi deploymentsApi = new DeploymentsApi(apiClient);
-        deploymentsApi.shutdownDeployment(deploymentId,true,true);
-
-        String filename = DeploymentFile.getFilename(deploymentId);
-        File f = new File(filename);
-        if (f.exists()) {
-            if (!f.delete()) {
-                System.err.println("Warning unable to delete file: " + filename);
-            }
-        }
+        DeploymentShutdown shutdown = new DeploymentShutdown();
+        shutdown.deploymentId = deploymentId;
+        shutdown.localDeployments = localDeployments;
+        shutdown.checkpointFile = checkpointFile;
+        shutdown.run();
     }
 }
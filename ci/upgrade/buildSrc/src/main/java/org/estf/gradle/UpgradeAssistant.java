@@ -0,0 +1,227 @@
+package org.estf.gradle;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * UpgradeAssistant
+ *
+ * Migrates the indices the next major version can not read, with the migration or upgrade
+ * assistant of the current version. Run by the UpgradeAssistantApi task and by UpgradeEssPaths.
+ */
+public class UpgradeAssistant {
+
+    public String esBaseUrl;
+    public String kbnBaseUrl;
+    public String username;
+    public String password;
+    public String version;
+    public String upgradeVersion;
+
+    private int majorVersion;
+    private ReindexThrottle throttle;
+
+    final int REINDEX_TIMEOUT = 60000;
+    final int SHARD_CHECK_INTERVAL = 1000;
+
+    public void run() throws IOException, InterruptedException {
+
+        System.out.println("----------------------------");
+        System.out.println(esBaseUrl);
+        System.out.println(kbnBaseUrl);
+        System.out.println(username);
+        System.out.println(password);
+        System.out.println(version);
+        System.out.println(upgradeVersion);
+        System.out.println("----------------------------");
+
+        RestApi api = new RestApi(username, password, version, upgradeVersion);
+        majorVersion = api.setMajorVersion();
+        int majorUpgradeVersion = api.setMajorUpgradeVersion();
+        if (majorVersion != majorUpgradeVersion) {
+            System.out.println("Performing major upgrade...");
+            throttle = ReindexThrottle.start(api, esBaseUrl, version);
+            try {
+                if (majorVersion == 5) {
+                    setKibanaIndexReadOnly(api);
+                    createKibana6Index(api);
+                    reindexKibana6Index(api);
+                    aliasKibana6Index(api);
+                    runMigrationAssistant5(api);
+                } else if (majorVersion == 6) {
+                    runMigrationAssistant6(api);
+                } else {
+                    System.out.println("Major upgrade from 7.x not yet supported");
+                    // Ref: https://github.com/elastic/kibana/issues/76837
+                    //runUpgradeAssistantStatus(api);
+                }
+            } finally {
+                throttle.close();
+            }
+        } else {
+            System.out.println("Performing minor upgrade...");
+        }
+    }
+
+    public void runMigrationAssistant5(RestApi api) throws IOException, InterruptedException {
+        String path = "/_migration/assistance";
+        String post_path = "/migration/upgrade/<index>";
+        if (majorVersion < 7) {
+            path = "/_xpack/migration/assistance";
+            post_path = "/_xpack/migration/upgrade/<index>";
+        }
+        Map<String, String> actions = api.get(esBaseUrl + path, JsonResponses::readActionRequired);
+        System.out.println(actions);
+        List<String> indices = new ArrayList<>();
+        for (Map.Entry<String, String> actionRequest : actions.entrySet()) {
+            if (actionRequest.getValue().equals("upgrade")) {
+                indices.add(actionRequest.getKey());
+            }
+        }
+        String upgradePath = post_path;
+        new MigrationScheduler(api, esBaseUrl).run(indices, key -> {
+            System.out.println(key);
+            HttpResponse response = api.post(esBaseUrl + upgradePath.replace("<index>", key),
+                                              "{\"wait_for_completion\": true}", false);
+            HttpEntity entity = response.getEntity();
+            String content = EntityUtils.toString(entity);
+            JSONObject json1 = new JSONObject(content);
+            JSONArray failures = json1.getJSONArray("failures");
+            if (failures.length() > 0) {
+                throw new IOException("Reindex Kibana index failed!");
+            }
+        });
+    }
+
+    public void runMigrationAssistant6(RestApi api) throws IOException, InterruptedException {
+        String path = "/_xpack/migration/assistance";
+        Map<String, String> actions = api.get(esBaseUrl + path, JsonResponses::readActionRequired);
+        System.out.println(actions);
+        List<String> indices = new ArrayList<>();
+        for (Map.Entry<String, String> actionRequest : actions.entrySet()) {
+            if (actionRequest.getValue().equals("reindex")) {
+                indices.add(actionRequest.getKey());
+            }
+        }
+        new MigrationScheduler(api, esBaseUrl).run(indices, index -> runUpgradeAssistantReindex(api, index));
+    }
+
+    public void runUpgradeAssistantStatus(RestApi api) throws IOException, InterruptedException {
+        String path = "/api/upgrade_assistant/status";
+        List<String> indices = api.get(kbnBaseUrl + path, JsonResponses::readIndicesToReindex);
+        System.out.println("\nIndices to reindex: " + indices + "\n");
+        new MigrationScheduler(api, esBaseUrl).run(indices, index -> runUpgradeAssistantReindex(api, index));
+    }
+
+    public void runUpgradeAssistantReindex(RestApi api, String key) throws IOException, InterruptedException {
+        String path = "/api/upgrade_assistant/reindex/<index>";
+        HttpResponse response = api.post(kbnBaseUrl + path.replace("<index>", key),
+                                         "", true);
+        HttpEntity entity = response.getEntity();
+        String content = EntityUtils.toString(entity);
+        JSONObject json = new JSONObject(content);
+        String newIndexName = json.getString("newIndexName");
+        checkUpgradeAssistantReindex(api, key);
+    }
+
+    public void checkUpgradeAssistantReindex(RestApi api, String key) throws IOException, InterruptedException {
+        String path = "/api/upgrade_assistant/reindex/<index>";
+        AdaptivePoller poller = new AdaptivePoller("reindex " + key);
+        JsonResponses.ReindexOp op = api.get(kbnBaseUrl + path.replace("<index>", key), JsonResponses::readReindexOp);
+        String taskId = null;
+        try {
+            while (op != null && op.status == 0) {
+                if (throttle != null && op.reindexTaskId != null && ! op.reindexTaskId.equals(taskId)) {
+                    taskId = op.reindexTaskId;
+                    throttle.register(taskId);
+                }
+                // Steps count up as the operation moves on, the reindex step also reports how far it got
+                poller.await("step " + op.lastCompletedStep, op.lastCompletedStep + op.percComplete,
+                             op.percComplete);
+                op = api.get(kbnBaseUrl + path.replace("<index>", key), JsonResponses::readReindexOp);
+            }
+        } finally {
+            if (throttle != null) {
+                throttle.unregister(taskId);
+            }
+        }
+        int status = op != null ? op.status : -1;
+        poller.finish(status == 1 ? "completed" : "status " + status);
+        if (status != 1) {
+            throw new IOException("Reindex failed! Status is " + status +
+                                  (op != null && op.errorMessage != null ? ": " + op.errorMessage : ""));
+        }
+    }
+
+    public void setKibanaIndexReadOnly(RestApi api) throws IOException {
+        String path = "/.kibana/_settings";
+        String jsonStr = "{\"index.blocks.write\":true}";
+        HttpResponse response = api.put(esBaseUrl + path, jsonStr, false);
+        HttpEntity entity = response.getEntity();
+        String content = EntityUtils.toString(entity);
+        JSONObject json = new JSONObject(content);
+        boolean acknowledged = json.getBoolean("acknowledged");
+        if (! acknowledged) {
+            throw new IOException("Settings block writes failed!");
+        }
+    }
+
+    public void createKibana6Index(RestApi api) throws IOException, InterruptedException {
+        // Do not wait for the shards in the create request, follow them with short health checks
+        String path = "/.kibana-6?wait_for_active_shards=0";
+        String file = "buildSrc/src/main/resources/mappings6.json";
+        String jsonStr = new String(Files.readAllBytes(Paths.get(file)));
+        HttpResponse response = api.put(esBaseUrl + path, jsonStr, false);
+        HttpEntity entity = response.getEntity();
+        String content = EntityUtils.toString(entity);
+        JSONObject json = new JSONObject(content);
+        boolean acknowledged = json.getBoolean("acknowledged");
+        if (! acknowledged) {
+            throw new IOException("Create Kibana index failed!");
+        }
+        long finish = System.currentTimeMillis() + REINDEX_TIMEOUT;
+        String health = api.get(esBaseUrl + "/_cluster/health/.kibana-6", JsonResponses::readHealthStatus);
+        while ("red".equals(health) && System.currentTimeMillis() < finish) {
+            Thread.sleep(SHARD_CHECK_INTERVAL);
+            health = api.get(esBaseUrl + "/_cluster/health/.kibana-6", JsonResponses::readHealthStatus);
+        }
+        if ("red".equals(health)) {
+            throw new IOException("Create Kibana index shards failed!");
+        }
+    }
+
+    public void reindexKibana6Index(RestApi api) throws IOException, InterruptedException {
+        String file = "buildSrc/src/main/resources/reindex6.json";
+        String jsonStr = new String(Files.readAllBytes(Paths.get(file)));
+        ReindexTask.start(api, esBaseUrl, jsonStr).withThrottle(throttle).waitForCompletion();
+    }
+
+    public void aliasKibana6Index(RestApi api) throws IOException {
+        String path = "/_aliases?timeout=30s&master_timeout=30s";
+        String file = "buildSrc/src/main/resources/alias6.json";
+        String jsonStr = new String(Files.readAllBytes(Paths.get(file)));
+        HttpResponse response = api.post(esBaseUrl + path, jsonStr, false);
+        HttpEntity entity = response.getEntity();
+        String content = EntityUtils.toString(entity);
+        JSONObject json = new JSONObject(content);
+        boolean acknowledged = json.getBoolean("acknowledged");
+        if (! acknowledged) {
+            throw new IOException("Settings block writes failed!");
+        }
+        List<String> indices = api.get(esBaseUrl + "/_alias/.kibana", JsonResponses::readAliasIndices);
+        if (! indices.contains(".kibana-6")) {
+            throw new IOException("Alias .kibana points to " + indices + " instead of .kibana-6!");
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package org.estf.gradle;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * UpgradeCheckpoint
+ *
+ * Progress of an upgrade run, kept in the workspace so a failed run can be resumed. It holds
+ * the properties of the deployment, the hop the deployment was upgraded to and the steps that
+ * completed. A rerun takes the deployment over while it still runs and skips the completed
+ * steps, instead of creating and seeding a new one. The file is rewritten after every step and
+ * removed once the deployment is shut down. A checkpoint not updated for
+ * ESTF_CHECKPOINT_MAX_HOURS (default 12) is not resumed, and its kept deployment is then shut
+ * down by the deployment pool, see DeploymentPool.keep.
+ */
+public class UpgradeCheckpoint {
+
+    static final String STEPS = "checkpoint_steps";
+    static final String HOP = "checkpoint_hop";
+    static final String PATH = "checkpoint_path";
+    static final int DEFAULT_MAX_HOURS = 12;
+
+    private static final Map<File, UpgradeCheckpoint> checkpoints = new HashMap<>();
+
+    private final File file;
+    private Properties properties;
+    private final Set<String> steps = new LinkedHashSet<>();
+
+    /**
+     * A step that is skipped once the checkpoint has it
+     */
+    public interface Step {
+        void run() throws IOException;
+    }
+
+    private UpgradeCheckpoint(File file) throws IOException {
+        this.file = file;
+        if (file.isFile()) {
+            properties = new Properties();
+            try (InputStream in = new FileInputStream(file)) {
+                properties.load(in);
+            }
+            String done = properties.getProperty(STEPS, "");
+            if (! done.isEmpty()) {
+                steps.addAll(Arrays.asList(done.split(",")));
+            }
+        }
+    }
+
+    /**
+     * The checkpoint of the file, one instance per file so tasks and build script share it
+     */
+    public static synchronized UpgradeCheckpoint get(File file) throws IOException {
+        File key = file.getAbsoluteFile();
+        UpgradeCheckpoint checkpoint = checkpoints.get(key);
+        if (checkpoint == null) {
+            checkpoint = new UpgradeCheckpoint(key);
+            checkpoints.put(key, checkpoint);
+        }
+        return checkpoint;
+    }
+
+    public static String getFilename(String path) {
+        return DeploymentFile.getFilename("upgrade_checkpoint_" + path.replaceAll("[^A-Za-z0-9._-]", "_"));
+    }
+
+    /**
+     * Run the step unless the checkpoint has it, without a checkpoint always run it
+     */
+    public static void run(UpgradeCheckpoint checkpoint, String step, Step action) throws IOException {
+        if (checkpoint != null && checkpoint.isDone(step)) {
+            System.out.println("Checkpoint: skipping completed step " + step);
+            return;
+        }
+        action.run();
+        if (checkpoint != null) {
+            checkpoint.done(step);
+        }
+    }
+
+    /**
+     * Properties of the deployment of the checkpoint, null when there is none
+     */
+    public synchronized Properties getDeploymentProperties() {
+        if (properties == null || properties.getProperty("deployment_id") == null) {
+            return null;
+        }
+        Properties deployment = new Properties();
+        for (String name : properties.stringPropertyNames()) {
+            if (! name.startsWith("checkpoint_")) {
+                deployment.setProperty(name, properties.getProperty(name));
+            }
+        }
+        return deployment;
+    }
+
+    /**
+     * Start over on a new deployment
+     */
+    public synchronized void start(Properties deployment, String path) throws IOException {
+        properties = new Properties();
+        properties.putAll(deployment);
+        properties.setProperty(PATH, path);
+        properties.setProperty(HOP, "0");
+        steps.clear();
+        write();
+    }
+
+    public synchronized boolean isDone(String step) {
+        return properties != null && steps.contains(step);
+    }
+
+    public synchronized void done(String step) throws IOException {
+        if (properties == null) {
+            return;
+        }
+        steps.add(step);
+        write();
+        System.out.println("Checkpoint: completed step " + step);
+    }
+
+    /**
+     * Record that the deployment now runs the version of the hop
+     */
+    public synchronized void setHop(int hop) throws IOException {
+        if (properties == null) {
+            return;
+        }
+        properties.setProperty(HOP, String.valueOf(hop));
+        write();
+    }
+
+    /**
+     * Not updated for too long to be resumed
+     */
+    public boolean isStale() {
+        long maxAgeMs = RetryPolicy.getEnvInt("ESTF_CHECKPOINT_MAX_HOURS", DEFAULT_MAX_HOURS) * 3600000L;
+        return System.currentTimeMillis() - file.lastModified() > maxAgeMs;
+    }
+
+    public synchronized String getPath() {
+        return properties != null ? properties.getProperty(PATH) : null;
+    }
+
+    public synchronized int getHop() {
+        return properties != null ? Integer.parseInt(properties.getProperty(HOP, "0")) : 0;
+    }
+
+    public synchronized Set<String> getSteps() {
+        return new LinkedHashSet<>(steps);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized void delete() {
+        properties = null;
+        steps.clear();
+        if (file.isFile() && ! file.delete()) {
+            System.err.println("Warning unable to delete file: " + file);
+        }
+    }
+
+    private void write() throws IOException {
+        properties.setProperty(STEPS, String.join(",", steps));
+        // Written aside and renamed, a killed build never leaves half a checkpoint
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            properties.store(out, "Upgrade Checkpoint");
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
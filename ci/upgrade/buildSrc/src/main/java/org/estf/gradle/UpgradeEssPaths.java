@@ -0,0 +1,568 @@
+package org.estf.gradle;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.TaskAction;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * UpgradeEssPaths
+ *
+ * Runs several upgrade paths of upgrade_paths.json side by side, instead of one path per job.
+ * Every path gets its own deployment and its own DeploymentCreator, DataUploader,
+ * UpgradeAssistant, DeploymentUpgrader and DeploymentShutdown, the work behind the tasks of an
+ * upgrade job, so paths share no state, only the cloud api client and the cached vault
+ * credentials. At most concurrency paths run at once, ESTF_UPGRADE_PATH_CONCURRENCY
+ * (default 3). A failed path does not stop the others, the results are printed per path and
+ * written to build/reports/upgrade_paths.json, and the task fails once all paths are done.
+ *
+ * With sharePrefixes the paths run as an UpgradePlan instead: a hop several paths share runs
+ * once, and where the paths part the deployment is snapshot to the seed repository and
+ * restored into a new deployment per extra branch, see SeedSnapshot.
+ */
+public class UpgradeEssPaths extends DefaultTask {
+
+    static final int DEFAULT_CONCURRENCY = 3;
+
+    @Input
+    public String pathsFile;
+
+    // Comma separated names of upgrade_paths.json, all of them when not set
+    @Input
+    public String jobs;
+
+    @Input
+    public int concurrency = RetryPolicy.getEnvInt("ESTF_UPGRADE_PATH_CONCURRENCY", DEFAULT_CONCURRENCY);
+
+    @Input
+    public String elasticsearchUserSettings;
+
+    @Input
+    public String kibanaUserSettings;
+
+    @Input
+    public int poolSize = 0;
+
+    @Input
+    public boolean localDeployments = false;
+
+    @Input
+    public boolean fastLoad = false;
+
+    @Input
+    public boolean seedSnapshot = false;
+
+    // Run shared prefixes of the paths once and fork the deployment where they part, see UpgradePlan
+    @Input
+    public boolean sharePrefixes = false;
+
+    private final List<PathResult> results = new ArrayList<>();
+    private Map<String, List<String>> paths;
+
+    public static class PathResult {
+        public final String job;
+        public final List<String> versions;
+        public final Map<String, Long> steps = new LinkedHashMap<>();
+        public String failedStep;
+        public String error;
+        public long millis;
+
+        PathResult(String job, List<String> versions) {
+            this.job = job;
+            this.versions = versions;
+        }
+
+        public boolean isPassed() {
+            return failedStep == null;
+        }
+    }
+
+    private interface Step {
+        void run() throws Exception;
+    }
+
+    @TaskAction
+    public void run() throws IOException {
+        if (pathsFile == null) {
+            throw new Error(this.getClass().getSimpleName() + ": pathsFile is required input");
+        }
+        paths = readPaths();
+        int threads = Math.max(1, Math.min(concurrency, paths.size()));
+        System.out.println("Running " + paths.size() + " upgrade paths, " + threads + " at a time");
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long start = System.currentTimeMillis();
+        try {
+            if (sharePrefixes) {
+                runPlan(new UpgradePlan(paths), executor);
+            } else {
+                runPaths(executor);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        List<String> failed = new ArrayList<>();
+        System.out.println("Upgrade paths done in " + (System.currentTimeMillis() - start) + " ms");
+        for (PathResult result : results) {
+            System.out.println(String.format("  %-15s %-30s %-6s %8d ms%s", result.job,
+                                             String.join(" -> ", result.versions),
+                                             result.isPassed() ? "PASSED" : "FAILED", result.millis,
+                                             result.isPassed() ? "" : "  " + result.failedStep + ": " + result.error));
+            for (Map.Entry<String, Long> step : result.steps.entrySet()) {
+                System.out.println(String.format("      %-40s %8d ms", step.getKey(), step.getValue()));
+            }
+            if (! result.isPassed()) {
+                failed.add(result.job);
+            }
+        }
+        writeReport(new File(getProject().getBuildDir(), "reports/upgrade_paths.json"));
+        if (! failed.isEmpty()) {
+            throw new IOException("FAILED! Upgrade paths: " + String.join(", ", failed));
+        }
+    }
+
+    public List<PathResult> getResults() {
+        return results;
+    }
+
+    private void runPaths(ExecutorService executor) {
+        List<CompletableFuture<PathResult>> runs = new ArrayList<>();
+        for (Map.Entry<String, List<String>> path : paths.entrySet()) {
+            runs.add(CompletableFuture.supplyAsync(() -> runPath(path.getKey(), path.getValue()), executor));
+        }
+        for (CompletableFuture<PathResult> run : runs) {
+            results.add(run.join());
+        }
+    }
+
+    private Map<String, List<String>> readPaths() throws IOException {
+        JSONObject json = new JSONObject(new String(Files.readAllBytes(new File(pathsFile).toPath()),
+                                                    StandardCharsets.UTF_8));
+        List<String> names = new ArrayList<>();
+        if (jobs != null && ! jobs.trim().isEmpty()) {
+            for (String job : jobs.split(",")) {
+                names.add(job.trim());
+            }
+        } else {
+            names.addAll(json.keySet());
+            // upgradeTest2 before upgradeTest10
+            names.sort((a, b) -> a.length() != b.length() ? a.length() - b.length() : a.compareTo(b));
+        }
+        Map<String, List<String>> paths = new LinkedHashMap<>();
+        for (String name : names) {
+            if (! json.has(name)) {
+                throw new IOException("FAILED! No upgrade path " + name + " in " + pathsFile);
+            }
+            List<String> versions = Arrays.asList(json.getString(name).split(","));
+            if (versions.size() < 2) {
+                throw new IOException("FAILED! Upgrade path " + name + " is malformed: " + json.getString(name));
+            }
+            paths.put(name, versions);
+        }
+        return paths;
+    }
+
+    /**
+     * Same as setDeploymentInputs of the ess build for an upgrade job. The topology is the one
+     * of a deployment created at the start version, upgrades keep it, so a fork gets the same
+     * resources as the deployment it copies.
+     */
+    private DeploymentCreator newCreator(String version, String startVersion) {
+        DeploymentCreator create = new DeploymentCreator();
+        create.stackVersion = version;
+        create.elasticsearchUserSettings = elasticsearchUserSettings;
+        create.kibanaUserSettings = kibanaUserSettings;
+        create.apmNode = compareVersion(startVersion, "6.3.0") >= 0;
+        create.enterpriseSearchNode = compareVersion(startVersion, "7.7.0") >= 0;
+        create.mlNode = compareVersion(startVersion, "6.4.0") >= 0;
+        create.ingestNode = true;
+        create.poolSize = poolSize;
+        create.localDeployments = localDeployments;
+        return create;
+    }
+
+    private void uploadData(Properties properties, String deploymentId, String version, String upgradeVersion)
+            throws IOException {
+        DataUploader upload = new DataUploader();
+        setClusterInputs(upload, properties);
+        upload.version = version;
+        upload.upgradeVersion = upgradeVersion;
+        upload.fastLoad = fastLoad;
+        upload.seedSnapshot = seedSnapshot;
+        upload.deploymentId = deploymentId;
+        upload.localDeployments = localDeployments;
+        upload.run();
+    }
+
+    private static void runUpgradeAssistant(Properties properties, String version, String upgradeVersion)
+            throws IOException, InterruptedException {
+        UpgradeAssistant assistant = new UpgradeAssistant();
+        setClusterInputs(assistant, properties);
+        assistant.version = version;
+        assistant.upgradeVersion = upgradeVersion;
+        assistant.run();
+    }
+
+    private static void upgradeDeployment(String deploymentId, String upgradeVersion) throws Exception {
+        DeploymentUpgrader upgrade = new DeploymentUpgrader();
+        upgrade.deploymentId = deploymentId;
+        upgrade.upgradeStackVersion = upgradeVersion;
+        upgrade.run();
+    }
+
+    private void shutdownDeployment(String deploymentId) throws Exception {
+        DeploymentShutdown shutdown = new DeploymentShutdown();
+        shutdown.deploymentId = deploymentId;
+        shutdown.localDeployments = localDeployments;
+        shutdown.run();
+    }
+
+    private PathResult runPath(String job, List<String> versions) {
+        PathResult result = new PathResult(job, versions);
+        long start = System.currentTimeMillis();
+        System.out.println("Upgrade path " + job + ": " + String.join(" -> ", versions));
+        DeploymentCreator create = newCreator(versions.get(0), versions.get(0));
+        try {
+            if (! step(result, "create deployment", create::run)) {
+                return result;
+            }
+            Properties properties = create.getProperties();
+            String deploymentId = create.getDeploymentId();
+            if (! step(result, "upload data",
+                       () -> uploadData(properties, deploymentId, versions.get(0), versions.get(1)))) {
+                return result;
+            }
+            for (int i = 0; i < versions.size() - 1; i++) {
+                String version = versions.get(i);
+                String upgradeVersion = versions.get(i + 1);
+                if (! step(result, "upgrade assistant" + i,
+                           () -> runUpgradeAssistant(properties, version, upgradeVersion))) {
+                    return result;
+                }
+                if (! step(result, "upgrade deployment " + upgradeVersion,
+                           () -> upgradeDeployment(deploymentId, upgradeVersion))) {
+                    return result;
+                }
+            }
+        } finally {
+            String deploymentId = create.getDeploymentId();
+            if (deploymentId != null) {
+                PathResult shutdown = new PathResult(job, versions);
+                step(shutdown, "shutdown deployment", () -> shutdownDeployment(deploymentId));
+                result.steps.putAll(shutdown.steps);
+                if (! shutdown.isPassed()) {
+                    System.err.println("Warning upgrade path " + job + " unable to shut down deployment " +
+                                       deploymentId + ": " + shutdown.error);
+                }
+            }
+            result.millis = System.currentTimeMillis() - start;
+            RequestMetrics.recordTask("upgrade path " + job, result.millis);
+            System.out.println("Upgrade path " + job + ": " + (result.isPassed() ? "PASSED" : "FAILED") +
+                               " in " + result.millis + " ms");
+        }
+        return result;
+    }
+
+    /**
+     * A deployment of the plan, its properties once created
+     */
+    private static class Deployment {
+        final DeploymentCreator create;
+
+        Deployment(DeploymentCreator create) {
+            this.create = create;
+        }
+
+        String getId() {
+            return create.getDeploymentId();
+        }
+
+        Properties getProperties() {
+            return create.getProperties();
+        }
+
+        RestApi getRestApi(String version) {
+            RestApi api = new RestApi(getProperties().getProperty("es_username"),
+                                      getProperties().getProperty("es_password"), version, version);
+            api.setMajorVersion();
+            return api;
+        }
+
+        String getEsUrl() {
+            return getProperties().getProperty("elasticsearch_url");
+        }
+
+        void restartKibana() throws IOException {
+            if (! create.localDeployments) {
+                CloudApi.restartKibana(getId());
+            }
+        }
+    }
+
+    private Deployment newDeployment(UpgradePlan.Node node) {
+        return new Deployment(newCreator(node.version, node.getStart().version));
+    }
+
+    /**
+     * Run the paths as a prefix tree, every shared hop once. Nodes are chained as futures, so
+     * no thread of the executor waits for another.
+     */
+    private void runPlan(UpgradePlan plan, ExecutorService executor) {
+        System.out.println("Upgrade plan, " + plan.summary());
+        Map<String, PathResult> planned = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> path : paths.entrySet()) {
+            planned.put(path.getKey(), new PathResult(path.getKey(), path.getValue()));
+        }
+        PlanRun run = new PlanRun(planned, executor);
+        List<CompletableFuture<Void>> starts = new ArrayList<>();
+        for (UpgradePlan.Node start : plan.getStarts()) {
+            starts.add(run.runNode(start, newDeployment(start)));
+        }
+        allOf(starts).join();
+        results.addAll(planned.values());
+    }
+
+    private static CompletableFuture<Void> allOf(List<? extends CompletableFuture<?>> futures) {
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private class PlanRun {
+        private final Map<String, PathResult> planned;
+        private final ExecutorService executor;
+        private final String runId = Long.toString(System.currentTimeMillis(), 36);
+        private final long start = System.currentTimeMillis();
+
+        PlanRun(Map<String, PathResult> planned, ExecutorService executor) {
+            this.planned = planned;
+            this.executor = executor;
+        }
+
+        CompletableFuture<Void> runNode(UpgradePlan.Node node, Deployment deployment) {
+            return CompletableFuture.supplyAsync(() -> runHop(node, deployment), executor)
+                    .thenCompose(passed -> passed && ! node.children.isEmpty() ?
+                                           runChildren(node, deployment) : shutdown(node, deployment));
+        }
+
+        /**
+         * Bring the deployment to the node: create and seed it at a start, else upgrade it from
+         * the parent. Paths that end here are done.
+         */
+        private boolean runHop(UpgradePlan.Node node, Deployment deployment) {
+            List<PathResult> through = getResults(node);
+            boolean passed;
+            if (node.isStart()) {
+                String upgradeVersion = node.children.keySet().iterator().next();
+                passed = step(through, "create deployment " + node.version, deployment.create::run) &&
+                         step(through, "upload data " + node.version,
+                              () -> uploadData(deployment.getProperties(), deployment.getId(), node.version,
+                                           upgradeVersion));
+            } else {
+                passed = step(through, "upgrade assistant " + node.parent.version + " -> " + node.version,
+                              () -> runUpgradeAssistant(deployment.getProperties(), node.parent.version,
+                                                        node.version)) &&
+                         step(through, "upgrade deployment " + node.version,
+                              () -> upgradeDeployment(deployment.getId(), node.version));
+            }
+            if (passed && node.children.size() > 1) {
+                passed = step(getResults(node), "fork snapshot " + node.getId(), () -> {
+                    SeedSnapshot snapshot = getForkSnapshot(node, deployment);
+                    if (! snapshot.createFork()) {
+                        throw new IOException("FAILED! A seed repository is required to fork " + node.getId());
+                    }
+                });
+            }
+            long millis = System.currentTimeMillis() - start;
+            for (PathResult result : through) {
+                if (! result.isPassed() || node.jobs.contains(result.job)) {
+                    finish(result, millis);
+                }
+            }
+            return passed;
+        }
+
+        /**
+         * The first child goes on with the deployment, every other child with a copy of it. The
+         * first child only starts once every copy restored the fork snapshot and it is deleted,
+         * while the deployment still runs the version of the node.
+         */
+        private CompletableFuture<Void> runChildren(UpgradePlan.Node node, Deployment deployment) {
+            List<CompletableFuture<Void>> children = new ArrayList<>();
+            List<CompletableFuture<Boolean>> copies = new ArrayList<>();
+            List<UpgradePlan.Node> nodes = new ArrayList<>(node.children.values());
+            for (UpgradePlan.Node child : nodes.subList(1, nodes.size())) {
+                Deployment fork = newDeployment(node);
+                CompletableFuture<Boolean> copy = CompletableFuture.supplyAsync(() -> fork(node, child, fork),
+                                                                                executor);
+                copies.add(copy);
+                children.add(copy.thenCompose(passed -> passed ? runNode(child, fork) : shutdown(child, fork)));
+            }
+            CompletableFuture<Void> copied = CompletableFuture.completedFuture(null);
+            if (! copies.isEmpty()) {
+                copied = allOf(copies).thenRunAsync(() -> {
+                    try {
+                        getForkSnapshot(node, deployment).delete();
+                    } catch (IOException | RuntimeException e) {
+                        System.err.println("Warning unable to delete fork snapshot of " + node.getId() + ": " +
+                                           e.getMessage());
+                    }
+                }, executor);
+            }
+            children.add(copied.thenCompose(v -> runNode(nodes.get(0), deployment)));
+            return allOf(children);
+        }
+
+        private boolean fork(UpgradePlan.Node node, UpgradePlan.Node child, Deployment fork) {
+            List<PathResult> through = getResults(child);
+            boolean passed = step(through, "fork create deployment " + node.version, fork.create::run) &&
+                             step(through, "fork restore " + node.getId(), () -> {
+                                 if (! getForkSnapshot(node, fork).restore(fork::restartKibana)) {
+                                     throw new IOException("FAILED! Fork snapshot of " + node.getId() + " not found");
+                                 }
+                             });
+            if (! passed) {
+                for (PathResult result : through) {
+                    finish(result, System.currentTimeMillis() - start);
+                }
+            }
+            return passed;
+        }
+
+        private CompletableFuture<Void> shutdown(UpgradePlan.Node node, Deployment deployment) {
+            return CompletableFuture.runAsync(() -> {
+                String deploymentId = deployment.getId();
+                if (deploymentId == null) {
+                    return;
+                }
+                PathResult shutdown = new PathResult(node.getId(), node.getVersions());
+                step(shutdown, "shutdown deployment", () -> shutdownDeployment(deploymentId));
+                if (! shutdown.isPassed()) {
+                    System.err.println("Warning upgrade plan " + node.getId() + " unable to shut down deployment " +
+                                       deploymentId + ": " + shutdown.error);
+                }
+            }, executor);
+        }
+
+        private SeedSnapshot getForkSnapshot(UpgradePlan.Node node, Deployment deployment) {
+            return new SeedSnapshot(deployment.getRestApi(node.version), deployment.getEsUrl(), node.version,
+                                    "fork-" + runId + "-" + node.getId());
+        }
+
+        private List<PathResult> getResults(UpgradePlan.Node node) {
+            List<PathResult> through = new ArrayList<>();
+            for (String job : node.through) {
+                through.add(planned.get(job));
+            }
+            return through;
+        }
+
+        private void finish(PathResult result, long millis) {
+            if (result.millis > 0) {
+                return;
+            }
+            result.millis = millis;
+            RequestMetrics.recordTask("upgrade path " + result.job, result.millis);
+            System.out.println("Upgrade path " + result.job + ": " + (result.isPassed() ? "PASSED" : "FAILED") +
+                               " in " + result.millis + " ms");
+        }
+    }
+
+    private boolean step(PathResult result, String name, Step step) {
+        return step(Collections.singletonList(result), name, step);
+    }
+
+    /**
+     * Run one step for all the paths that share it, when it fails they all fail
+     */
+    private boolean step(List<PathResult> results, String name, Step step) {
+        List<String> jobs = new ArrayList<>();
+        for (PathResult result : results) {
+            jobs.add(result.job);
+        }
+        String label = "Upgrade path " + String.join(", ", jobs);
+        long start = System.currentTimeMillis();
+        System.out.println(label + ": " + name);
+        try {
+            step.run();
+            return true;
+        } catch (Exception | Error e) {
+            String error = e.getMessage() != null ? e.getMessage() : e.toString();
+            for (PathResult result : results) {
+                if (result.isPassed()) {
+                    result.failedStep = name;
+                    result.error = error;
+                }
+            }
+            System.err.println(label + " failed to " + name + ": " + error);
+            return false;
+        } finally {
+            long millis = System.currentTimeMillis() - start;
+            for (PathResult result : results) {
+                result.steps.put(name, millis);
+            }
+            RequestMetrics.recordTask("upgrade path " + String.join(",", jobs) + " " + name, millis);
+        }
+    }
+
+    private static void setClusterInputs(DataUploader task, Properties properties) {
+        task.esBaseUrl = properties.getProperty("elasticsearch_url");
+        task.kbnBaseUrl = properties.getProperty("kibana_url");
+        task.username = properties.getProperty("es_username");
+        task.password = properties.getProperty("es_password");
+    }
+
+    private static void setClusterInputs(UpgradeAssistant task, Properties properties) {
+        task.esBaseUrl = properties.getProperty("elasticsearch_url");
+        task.kbnBaseUrl = properties.getProperty("kibana_url");
+        task.username = properties.getProperty("es_username");
+        task.password = properties.getProperty("es_password");
+    }
+
+    private void writeReport(File file) throws IOException {
+        JSONArray report = new JSONArray();
+        for (PathResult result : results) {
+            JSONObject steps = new JSONObject();
+            for (Map.Entry<String, Long> step : result.steps.entrySet()) {
+                steps.put(step.getKey(), step.getValue());
+            }
+            report.put(new JSONObject()
+                    .put("job", result.job)
+                    .put("versions", new JSONArray(result.versions))
+                    .put("result", result.isPassed() ? "PASSED" : "FAILED")
+                    .put("failed_step", result.failedStep)
+                    .put("error", result.error)
+                    .put("millis", result.millis)
+                    .put("steps", steps));
+        }
+        DatasetCache.mkdirs(file.getParentFile());
+        Files.write(file.toPath(), report.toString(2).getBytes(StandardCharsets.UTF_8));
+    }
+
+    static int compareVersion(String version1, String version2) {
+        String[] arr1 = version1.split("\\.");
+        String[] arr2 = version2.split("\\.");
+        for (int i = 0; i < Math.max(arr1.length, arr2.length); i++) {
+            int elem1 = i < arr1.length ? Integer.parseInt(arr1[i]) : 0;
+            int elem2 = i < arr2.length ? Integer.parseInt(arr2[i]) : 0;
+            if (elem1 != elem2) {
+                return elem1 < elem2 ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,154 @@
+package org.estf.gradle;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * UpgradePlan
+ *
+ * Prefix tree of upgrade paths. Paths that start with the same versions share the nodes of
+ * that prefix, so a deployment is created for every start version and an upgrade runs for
+ * every node once, whatever the number of paths going through it. Where a node has several
+ * children its deployment is forked, the first child goes on with it and every other child
+ * gets a copy.
+ */
+public class UpgradePlan {
+
+    private final Map<String, Node> starts = new LinkedHashMap<>();
+    private final Map<String, List<String>> paths;
+
+    public static class Node {
+        public final String version;
+        public final Node parent;
+        public final Map<String, Node> children = new LinkedHashMap<>();
+        // Paths that end here, and all paths going through here
+        public final List<String> jobs = new ArrayList<>();
+        public final List<String> through = new ArrayList<>();
+
+        Node(String version, Node parent) {
+            this.version = version;
+            this.parent = parent;
+        }
+
+        public boolean isStart() {
+            return parent == null;
+        }
+
+        /**
+         * The versions from the start to this node
+         */
+        public List<String> getVersions() {
+            List<String> versions = parent != null ? parent.getVersions() : new ArrayList<>();
+            versions.add(version);
+            return versions;
+        }
+
+        /**
+         * The start of the paths through this node, its deployment was created for that version
+         */
+        public Node getStart() {
+            return parent != null ? parent.getStart() : this;
+        }
+
+        public String getId() {
+            return String.join("-", getVersions());
+        }
+    }
+
+    public UpgradePlan(Map<String, List<String>> paths) {
+        this.paths = paths;
+        for (Map.Entry<String, List<String>> path : paths.entrySet()) {
+            Node node = null;
+            for (String version : path.getValue()) {
+                Map<String, Node> level = node != null ? node.children : starts;
+                Node parent = node;
+                node = level.computeIfAbsent(version, v -> new Node(v, parent));
+                node.through.add(path.getKey());
+            }
+            if (node != null) {
+                node.jobs.add(path.getKey());
+            }
+        }
+    }
+
+    public Collection<Node> getStarts() {
+        return starts.values();
+    }
+
+    public List<Node> getNodes() {
+        List<Node> nodes = new ArrayList<>();
+        for (Node start : starts.values()) {
+            addNodes(start, nodes);
+        }
+        return nodes;
+    }
+
+    /**
+     * Deployments the plan creates: one per start, and one per fork
+     */
+    public int getDeployments() {
+        int deployments = 0;
+        for (Node node : getNodes()) {
+            deployments += node.isStart() ? 1 : 0;
+            deployments += Math.max(0, node.children.size() - 1);
+        }
+        return deployments;
+    }
+
+    /**
+     * Upgrades the plan runs, one per node after the start
+     */
+    public int getUpgrades() {
+        int upgrades = 0;
+        for (Node node : getNodes()) {
+            upgrades += node.isStart() ? 0 : 1;
+        }
+        return upgrades;
+    }
+
+    /**
+     * Upgrades the paths take when every path runs on its own
+     */
+    public int getUpgradesWithoutSharing() {
+        int upgrades = 0;
+        for (List<String> versions : paths.values()) {
+            upgrades += versions.size() - 1;
+        }
+        return upgrades;
+    }
+
+    public String summary() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("%d paths: %d deployments, %d data uploads and %d upgrades, " +
+                                     "instead of %d, %d and %d",
+                                     paths.size(), getDeployments(), starts.size(), getUpgrades(),
+                                     paths.size(), paths.size(), getUpgradesWithoutSharing()));
+        for (Node start : starts.values()) {
+            appendNode(builder, start, "  ");
+        }
+        return builder.toString();
+    }
+
+    private static void addNodes(Node node, List<Node> nodes) {
+        nodes.add(node);
+        for (Node child : node.children.values()) {
+            addNodes(child, nodes);
+        }
+    }
+
+    private static void appendNode(StringBuilder builder, Node node, String indent) {
+        builder.append("\n").append(indent).append(node.version);
+        if (node.children.size() > 1) {
+            builder.append(" (fork x").append(node.children.size()).append(")");
+        }
+        if (! node.jobs.isEmpty()) {
+            builder.append(" ").append(node.jobs);
+        }
+        for (Node child : node.children.values()) {
+            appendNode(builder, child, indent + "  ");
+        }
+    }
+}
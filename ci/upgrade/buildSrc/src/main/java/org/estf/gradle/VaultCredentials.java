@@ -1,7 +1,5 @@
 package org.estf.gradle;
 
-import com.bettercloud.vault.Vault;
-import com.bettercloud.vault.VaultConfig;
 import com.bettercloud.vault.VaultException;
 
 import java.io.IOException;
@@ -14,6 +12,8 @@ import java.io.IOException;
  */
 public class VaultCredentials {
 
+    static final String DEFAULT_VAULT_PATH = "secret/stack-testing/estf-cloud-staging";
+
     private String apiKey;
     private String vaultPath;
     private final String vaultAddress;
@@ -31,23 +31,22 @@ public class VaultCredentials {
             throw new IOException(this.getClass().getSimpleName() + ": vaultToken is required");
         }
         if (vaultPath == null || vaultPath.trim().isEmpty()) {
-            vaultPath = "secret/stack-testing/estf-cloud-staging";
+            vaultPath = DEFAULT_VAULT_PATH;
         }
         setApiKey();
     }
 
+    /**
+     * Start reading the credentials while the build is configured
+     */
+    public static void prefetch() {
+        String path = System.getenv("VAULT_PATH");
+        VaultSecrets.prefetch(System.getenv("VAULT_ADDR"), System.getenv("VAULT_TOKEN"),
+                              path == null || path.trim().isEmpty() ? DEFAULT_VAULT_PATH : path);
+    }
+
     private void setApiKey() throws VaultException {
-        final VaultConfig config = new VaultConfig()
-                .engineVersion(1)
-                .address(vaultAddress)
-                .token(vaultToken)
-                .build();
-        final Vault vault = new Vault(config);
-        apiKey = vault.withRetries(10, 1000)
-                .logical()
-                .read(vaultPath)
-                .getData()
-                .get("apiKey");
+        apiKey = VaultSecrets.read(vaultAddress, vaultToken, vaultPath).get("apiKey");
     }
 
     public String getApiKey() {
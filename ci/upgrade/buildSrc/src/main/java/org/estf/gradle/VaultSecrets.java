@@ -0,0 +1,138 @@
+package org.estf.gradle;
+
+import com.bettercloud.vault.Vault;
+import com.bettercloud.vault.VaultConfig;
+import com.bettercloud.vault.VaultException;
+import com.bettercloud.vault.response.LogicalResponse;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * VaultSecrets
+ *
+ * Secrets read from vault once per build and kept for their lease duration, or for
+ * ESTF_VAULT_TTL_SECONDS when the secret has no lease. A read can be started early with
+ * prefetch so it runs while the build is configured, readers of a path that is still being
+ * read wait for that same read. Failed reads are retried with a growing backoff, up to
+ * ESTF_VAULT_RETRIES attempts, and are not kept.
+ */
+public class VaultSecrets {
+
+    static final int DEFAULT_TTL_SECONDS = 300;
+    static final int DEFAULT_ATTEMPTS = 5;
+    static final long INITIAL_BACKOFF_MS = 250;
+    static final long MAX_BACKOFF_MS = 4000;
+
+    private static final Map<String, Entry> cache = new ConcurrentHashMap<>();
+    private static final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "vault-secrets");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static class Entry {
+        final CompletableFuture<Map<String, String>> data = new CompletableFuture<>();
+        volatile long expiresAt = Long.MAX_VALUE;
+
+        boolean isUsable() {
+            if (! data.isDone()) {
+                return true;
+            }
+            return ! data.isCompletedExceptionally() && System.currentTimeMillis() < expiresAt;
+        }
+    }
+
+    /**
+     * Start reading the path in the background, does nothing without vault address and token
+     */
+    public static void prefetch(String address, String token, String path) {
+        if (isSet(address) && isSet(token)) {
+            fetch(address, token, path);
+        }
+    }
+
+    /**
+     * The secret at the path, from the cache while its lease lasts
+     */
+    public static Map<String, String> read(String address, String token, String path) throws VaultException {
+        if (! isSet(address) || ! isSet(token)) {
+            throw new VaultException("Vault address and token are required to read " + path);
+        }
+        try {
+            return fetch(address, token, path).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof VaultException) {
+                throw (VaultException) e.getCause();
+            }
+            throw new VaultException(e.getCause());
+        }
+    }
+
+    private static synchronized CompletableFuture<Map<String, String>> fetch(String address, String token,
+                                                                            String path) {
+        // Cached per vault and token, the same path may hold other secrets elsewhere
+        String key = address.trim() + "|" + token.hashCode() + "|" + path;
+        Entry entry = cache.get(key);
+        if (entry != null && entry.isUsable()) {
+            return entry.data;
+        }
+        Entry loading = new Entry();
+        cache.put(key, loading);
+        executor.execute(() -> {
+            try {
+                loading.data.complete(load(address, token, path, loading));
+            } catch (Exception | Error e) {
+                loading.data.completeExceptionally(e);
+            }
+        });
+        return loading.data;
+    }
+
+    private static Map<String, String> load(String address, String token, String path, Entry entry)
+            throws VaultException {
+        final VaultConfig config = new VaultConfig()
+                .engineVersion(1)
+                .address(address)
+                .token(token)
+                .build();
+        final Vault vault = new Vault(config);
+        int attempts = Math.max(1, RetryPolicy.getEnvInt("ESTF_VAULT_RETRIES", DEFAULT_ATTEMPTS));
+        long backoff = INITIAL_BACKOFF_MS;
+        long start = System.currentTimeMillis();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                LogicalResponse response = vault.logical().read(path);
+                Long lease = response.getLeaseDuration();
+                long ttl = lease != null && lease > 0 ? lease :
+                        RetryPolicy.getEnvInt("ESTF_VAULT_TTL_SECONDS", DEFAULT_TTL_SECONDS);
+                entry.expiresAt = System.currentTimeMillis() + ttl * 1000;
+                System.out.println("Vault: read " + path + " in " + (System.currentTimeMillis() - start) +
+                                   " ms, cached for " + ttl + " s");
+                return response.getData();
+            } catch (VaultException e) {
+                int status = e.getHttpStatusCode();
+                if (attempt >= attempts || (status >= 400 && status < 500 && status != 429)) {
+                    throw e;
+                }
+                System.err.println("Warning vault read of " + path + " failed, attempt " + attempt + " of " +
+                                   attempts + ", retrying in " + backoff + " ms: " + e.getMessage());
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new VaultException(ie);
+                }
+                backoff = Math.min(MAX_BACKOFF_MS, backoff * 2);
+            }
+        }
+    }
+
+    private static boolean isSet(String value) {
+        return value != null && ! value.trim().isEmpty();
+    }
+}
@@ -0,0 +1,80 @@
+package org.estf.gradle;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * CircuitBreakerTest
+ *
+ * Drives a breaker through its states with a clock the test moves forward.
+ */
+public class CircuitBreakerTest {
+
+    private long now;
+    private CircuitBreaker breaker;
+
+    @Before
+    public void setUp() {
+        now = 1000000L;
+        breaker = new CircuitBreaker("test-host", () -> now);
+    }
+
+    private void fail(int times) {
+        for (int i = 0; i < times; i++) {
+            breaker.onFailure();
+        }
+    }
+
+    @Test
+    public void staysClosedBelowThreshold() {
+        fail(CircuitBreaker.FAILURE_THRESHOLD - 1);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.acquire());
+    }
+
+    @Test
+    public void successResetsFailureCount() {
+        fail(CircuitBreaker.FAILURE_THRESHOLD - 1);
+        breaker.onSuccess();
+        fail(CircuitBreaker.FAILURE_THRESHOLD - 1);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void opensAtThresholdAndHoldsRequestsBack() {
+        fail(CircuitBreaker.FAILURE_THRESHOLD);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(CircuitBreaker.OPEN_MS, breaker.acquire());
+        now += 10000;
+        assertEquals(CircuitBreaker.OPEN_MS - 10000, breaker.acquire());
+    }
+
+    @Test
+    public void halfOpensWithOneTrialAndClosesOnSuccess() {
+        fail(CircuitBreaker.FAILURE_THRESHOLD);
+        now += CircuitBreaker.OPEN_MS;
+        assertEquals(0, breaker.acquire());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        // Only the trial goes out, others wait for its outcome
+        assertEquals(1000, breaker.acquire());
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.acquire());
+        assertEquals(0, breaker.acquire());
+    }
+
+    @Test
+    public void failedTrialOpensAgainForAFullPeriod() {
+        fail(CircuitBreaker.FAILURE_THRESHOLD);
+        now += CircuitBreaker.OPEN_MS;
+        assertEquals(0, breaker.acquire());
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(CircuitBreaker.OPEN_MS, breaker.acquire());
+        now += CircuitBreaker.OPEN_MS;
+        assertEquals(0, breaker.acquire());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    }
+}
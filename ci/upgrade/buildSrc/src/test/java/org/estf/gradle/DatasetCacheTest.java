@@ -0,0 +1,188 @@
+package org.estf.gradle;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * DatasetCacheTest
+ *
+ * Runs the cache against a local http server that answers conditional requests the way
+ * download.elastic.co does, with ETag and Last-Modified.
+ */
+public class DatasetCacheTest {
+
+    private static final String LAST_MODIFIED = "Wed, 21 Oct 2020 07:28:00 GMT";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private String url;
+    private volatile byte[] body;
+    private volatile String etag;
+    private volatile boolean truncate = false;
+    // Status of every response, and the conditional headers of every request
+    private final List<Integer> statuses = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> ifNoneMatch = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> ifModifiedSince = Collections.synchronizedList(new ArrayList<>());
+
+    @Before
+    public void setUp() throws IOException {
+        body = content("first", 200000);
+        etag = "\"v1\"";
+        startServer(0);
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/accounts.zip";
+    }
+
+    private void startServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/accounts.zip", this::handle);
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String noneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        String modifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+        ifNoneMatch.add(noneMatch);
+        ifModifiedSince.add(modifiedSince);
+        exchange.getResponseHeaders().add("Last-Modified", LAST_MODIFIED);
+        if (etag != null) {
+            exchange.getResponseHeaders().add("ETag", etag);
+        }
+        boolean notModified = noneMatch != null ? noneMatch.equals(etag) :
+                              LAST_MODIFIED.equals(modifiedSince);
+        if (notModified) {
+            statuses.add(304);
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+        statuses.add(200);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body, 0, truncate ? body.length / 2 : body.length);
+        } catch (IOException ignored) {
+        }
+        if (truncate) {
+            // Drops the connection, the client sees fewer bytes than the content length
+            server.stop(0);
+        }
+    }
+
+    private static byte[] content(String prefix, int size) {
+        StringBuilder builder = new StringBuilder(size);
+        int line = 0;
+        while (builder.length() < size) {
+            builder.append(prefix).append(" line ").append(line++).append('\n');
+        }
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private DatasetCache newCache(boolean offline) {
+        return new DatasetCache(folder.getRoot(), 10 * 1024 * 1024, offline);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        try (InputStream stream = in) {
+            return stream.readAllBytes();
+        }
+    }
+
+    @Test
+    public void revalidatesWithETag() throws IOException {
+        DatasetCache cache = newCache(false);
+        assertArrayEquals(body, readAll(cache.open(url)));
+        assertArrayEquals(body, readAll(cache.open(url)));
+        assertEquals(List.of(200, 304), statuses);
+        assertNull(ifNoneMatch.get(0));
+        assertEquals("\"v1\"", ifNoneMatch.get(1));
+        assertEquals(LAST_MODIFIED, ifModifiedSince.get(1));
+    }
+
+    @Test
+    public void revalidatesWithLastModifiedOnly() throws IOException {
+        etag = null;
+        DatasetCache cache = newCache(false);
+        assertArrayEquals(body, readAll(cache.open(url)));
+        assertArrayEquals(body, readAll(cache.open(url)));
+        assertEquals(List.of(200, 304), statuses);
+        assertNull(ifNoneMatch.get(1));
+        assertEquals(LAST_MODIFIED, ifModifiedSince.get(1));
+    }
+
+    @Test
+    public void downloadsAgainWhenChanged() throws IOException {
+        DatasetCache cache = newCache(false);
+        readAll(cache.open(url));
+        body = content("second", 150000);
+        etag = "\"v2\"";
+        assertArrayEquals(body, readAll(cache.open(url)));
+        assertArrayEquals(body, readAll(cache.open(url)));
+        assertEquals(List.of(200, 200, 304), statuses);
+    }
+
+    @Test
+    public void cachesWhatTheCallerDidNotRead() throws IOException {
+        DatasetCache cache = newCache(false);
+        try (InputStream in = cache.open(url)) {
+            byte[] start = new byte[100];
+            assertEquals(100, in.readNBytes(start, 0, start.length));
+        }
+        assertArrayEquals(body, readAll(cache.open(url)));
+        assertEquals(List.of(200, 304), statuses);
+    }
+
+    @Test
+    public void servesOfflineFromCache() throws IOException {
+        try {
+            newCache(true).open(url);
+            fail("Expected offline miss to fail");
+        } catch (IOException expected) {
+        }
+        readAll(newCache(false).open(url));
+        stopServer();
+        assertArrayEquals(body, readAll(newCache(true).open(url)));
+        assertEquals(List.of(200), statuses);
+    }
+
+    @Test
+    public void doesNotCacheTruncatedDownload() throws IOException {
+        DatasetCache cache = newCache(false);
+        truncate = true;
+        try {
+            readAll(cache.open(url));
+            fail("Expected truncated download to fail");
+        } catch (IOException expected) {
+        }
+        truncate = false;
+        startServer(server.getAddress().getPort());
+        assertArrayEquals(body, readAll(cache.open(url)));
+        assertEquals(List.of(200, 200), statuses);
+        assertNull(ifNoneMatch.get(1));
+    }
+}
@@ -0,0 +1,244 @@
+package org.estf.gradle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * DeploymentPoolTest
+ *
+ * Runs jobs leasing, refilling and reaping the same pool at once against local deployments
+ * that start within milliseconds.
+ */
+public class DeploymentPoolTest {
+
+    private static final String KEY = "7.10.0-test";
+    private static final long HOUR_MS = 3600000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ExecutorService executor;
+    private Recording provisioner;
+
+    /**
+     * Local deployments that keep track of what was created and shut down
+     */
+    static class Recording implements DeploymentPool.Provisioner {
+        final LocalDeployments local;
+        final Set<String> created = ConcurrentHashMap.newKeySet();
+        final Set<String> shutdown = ConcurrentHashMap.newKeySet();
+
+        Recording(File dir, long createMs, long startMs) {
+            local = new LocalDeployments(dir, createMs, startMs);
+        }
+
+        @Override
+        public Properties create() throws IOException {
+            Properties properties = local.create();
+            created.add(properties.getProperty("deployment_id"));
+            return properties;
+        }
+
+        @Override
+        public boolean isRunning(String deploymentId) throws IOException {
+            return local.isRunning(deploymentId);
+        }
+
+        @Override
+        public void awaitRunning(String deploymentId) throws IOException {
+            local.awaitRunning(deploymentId);
+        }
+
+        @Override
+        public void shutdown(String deploymentId) throws IOException {
+            if (! shutdown.add(deploymentId)) {
+                throw new IOException("Deployment " + deploymentId + " shut down twice");
+            }
+            local.shutdown(deploymentId);
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        executor = Executors.newFixedThreadPool(8);
+        provisioner = new Recording(folder.newFolder("local"), 1, 0);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private DeploymentPool newPool(long maxAgeMs, long pendingMs, long leaseMs) throws IOException {
+        return newPool(maxAgeMs, pendingMs, leaseMs, HOUR_MS);
+    }
+
+    private DeploymentPool newPool(long maxAgeMs, long pendingMs, long leaseMs, long keptMs) throws IOException {
+        return new DeploymentPool(new File(folder.getRoot(), "pool"), maxAgeMs, pendingMs, leaseMs, keptMs);
+    }
+
+    /**
+     * Run the task on every thread at the same time and collect the results
+     */
+    private <T> List<T> race(int threads, Callable<T> task) throws Exception {
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Future<T>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(() -> {
+                ready.countDown();
+                go.await();
+                return task.call();
+            }));
+        }
+        ready.await();
+        go.countDown();
+        List<T> results = new ArrayList<>();
+        for (Future<T> future : futures) {
+            results.add(future.get());
+        }
+        return results;
+    }
+
+    @Test
+    public void concurrentLeasesTakeEveryDeploymentOnce() throws Exception {
+        DeploymentPool pool = newPool(HOUR_MS, HOUR_MS, HOUR_MS);
+        assertEquals(5, pool.refill(KEY, 5, provisioner));
+
+        List<DeploymentPool.Lease> leases = race(8, () -> pool.lease(KEY, provisioner));
+        Set<String> leased = new HashSet<>();
+        int empty = 0;
+        for (DeploymentPool.Lease lease : leases) {
+            if (lease == null) {
+                empty++;
+            } else {
+                assertTrue("Leased twice: " + lease.getDeploymentId(), leased.add(lease.getDeploymentId()));
+                assertTrue(lease.running);
+            }
+        }
+        assertEquals(provisioner.created, leased);
+        assertEquals(3, empty);
+    }
+
+    @Test
+    public void concurrentRefillsDoNotOverfill() throws Exception {
+        DeploymentPool pool = newPool(HOUR_MS, HOUR_MS, HOUR_MS);
+        List<Integer> requested = race(8, () -> pool.refill(KEY, 3, provisioner));
+        int total = 0;
+        for (int count : requested) {
+            total += count;
+        }
+        assertEquals(3, total);
+        assertEquals(3, provisioner.created.size());
+    }
+
+    @Test
+    public void pendingDeploymentIsLeasedUntilItRuns() throws Exception {
+        Recording slow = new Recording(folder.newFolder("slow"), 1, 300);
+        DeploymentPool pool = newPool(HOUR_MS, HOUR_MS, HOUR_MS);
+        pool.refill(KEY, 2, slow);
+
+        DeploymentPool.Lease pending = pool.lease(KEY, slow);
+        assertNotNull(pending);
+        assertFalse(pending.running);
+        slow.awaitRunning(pending.getDeploymentId());
+
+        DeploymentPool.Lease ready = pool.lease(KEY, slow);
+        assertNotNull(ready);
+        assertTrue(ready.running);
+        assertNull(pool.lease(KEY, slow));
+    }
+
+    @Test
+    public void reaperAndLeasesNeverShareADeployment() throws Exception {
+        // Deployments get old while jobs lease them, each one is either leased or reaped
+        DeploymentPool pool = newPool(40, 40, HOUR_MS);
+        Set<String> leased = ConcurrentHashMap.newKeySet();
+        AtomicInteger round = new AtomicInteger();
+        while (round.incrementAndGet() <= 20) {
+            pool.refill(KEY, 6, provisioner);
+            Thread.sleep(35);
+            race(6, () -> {
+                if (Thread.currentThread().getId() % 2 == 0) {
+                    pool.reap(provisioner);
+                } else {
+                    DeploymentPool.Lease lease = pool.lease(KEY, provisioner);
+                    if (lease != null) {
+                        assertTrue(leased.add(lease.getDeploymentId()));
+                    }
+                }
+                return null;
+            });
+            for (String deploymentId : leased) {
+                assertFalse("Leased deployment was reaped: " + deploymentId,
+                            provisioner.shutdown.contains(deploymentId));
+            }
+            // Leases end, the rest is reaped before the next round
+            for (String deploymentId : leased) {
+                pool.release(deploymentId);
+            }
+            Thread.sleep(45);
+            pool.reap(provisioner);
+            Set<String> accounted = new HashSet<>(leased);
+            accounted.addAll(provisioner.shutdown);
+            assertEquals(provisioner.created, accounted);
+        }
+    }
+
+    @Test
+    public void expiredLeasesAreReaped() throws Exception {
+        DeploymentPool pool = newPool(HOUR_MS, HOUR_MS, 50);
+        pool.refill(KEY, 1, provisioner);
+        DeploymentPool.Lease lease = pool.lease(KEY, provisioner);
+        assertNotNull(lease);
+        pool.reap(provisioner);
+        assertTrue(provisioner.shutdown.isEmpty());
+        Thread.sleep(80);
+        pool.reap(provisioner);
+        assertEquals(provisioner.created, provisioner.shutdown);
+    }
+
+    @Test
+    public void keptDeploymentsAreReapedUnlessResumed() throws Exception {
+        DeploymentPool pool = newPool(HOUR_MS, HOUR_MS, HOUR_MS, 50);
+        String kept = provisioner.create().getProperty("deployment_id");
+        String resumed = provisioner.create().getProperty("deployment_id");
+        pool.keep(kept);
+        pool.keep(resumed);
+        pool.reap(provisioner);
+        assertTrue(provisioner.shutdown.isEmpty());
+
+        // A rerun takes one over before it gets too old
+        pool.release(resumed);
+        Thread.sleep(80);
+        pool.reapKept(provisioner);
+        assertEquals(Collections.singleton(kept), provisioner.shutdown);
+        pool.reap(provisioner);
+        assertEquals(Collections.singleton(kept), provisioner.shutdown);
+    }
+}
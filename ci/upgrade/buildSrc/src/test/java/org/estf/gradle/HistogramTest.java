@@ -0,0 +1,81 @@
+package org.estf.gradle;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * HistogramTest
+ *
+ * Percentiles are the upper bound of the bucket of the value, at most 1/16 above it.
+ */
+public class HistogramTest {
+
+    private static void assertWithinBucket(long expected, long actual) {
+        assertTrue("expected " + expected + " got " + actual,
+                   actual >= expected && actual <= expected + expected / 16);
+    }
+
+    @Test
+    public void emptyHistogram() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMin());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.percentile(50));
+        assertEquals(0.0, histogram.getMean(), 0.0);
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        Histogram histogram = new Histogram();
+        for (int i = 0; i < 16; i++) {
+            histogram.record(i);
+        }
+        assertEquals(7, histogram.percentile(50));
+        assertEquals(15, histogram.percentile(100));
+        assertEquals(0, histogram.percentile(0));
+    }
+
+    @Test
+    public void percentilesOfUniformValues() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 10000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(10000, histogram.getCount());
+        assertEquals(1, histogram.getMin());
+        assertEquals(10000, histogram.getMax());
+        assertEquals(50005000, histogram.getSum());
+        assertEquals(5000.5, histogram.getMean(), 0.001);
+        assertWithinBucket(5000, histogram.percentile(50));
+        assertWithinBucket(9000, histogram.percentile(90));
+        assertWithinBucket(9900, histogram.percentile(99));
+        // Never above the largest value recorded
+        assertEquals(10000, histogram.percentile(100));
+    }
+
+    @Test
+    public void percentilesOfSkewedValues() {
+        Histogram histogram = new Histogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(20);
+        }
+        histogram.record(3000000);
+        assertWithinBucket(20, histogram.percentile(50));
+        assertWithinBucket(20, histogram.percentile(99));
+        assertEquals(3000000, histogram.percentile(99.5));
+    }
+
+    @Test
+    public void largeAndNegativeValues() {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE / 2);
+        assertEquals(0, histogram.getMin());
+        assertEquals(Long.MAX_VALUE / 2, histogram.getMax());
+        assertEquals(0, histogram.percentile(50));
+        assertEquals(Long.MAX_VALUE / 2, histogram.percentile(100));
+    }
+}
@@ -0,0 +1,52 @@
+package org.estf.gradle;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JsonResponsesBenchmark
+ *
+ * JMH benchmark of the migration assistance reader against the org.json code it replaced, on
+ * synthetic responses of a growing number of indices. Run with: gradle -p buildSrc benchmarkJsonResponses
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class JsonResponsesBenchmark {
+
+    @Param({"1000", "20000"})
+    public int indices;
+
+    private String content;
+
+    @Setup
+    public void setUp() {
+        content = JsonResponsesTest.assistancePayload(indices);
+    }
+
+    @Benchmark
+    public Map<String, String> orgJson() {
+        return JsonResponsesTest.readActionRequiredDom(content);
+    }
+
+    @Benchmark
+    public Map<String, String> streaming() throws IOException {
+        return JsonResponsesTest.read(content, JsonResponses::readActionRequired);
+    }
+}
@@ -0,0 +1,150 @@
+package org.estf.gradle;
+
+import com.google.gson.stream.JsonReader;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * JsonResponsesTest
+ *
+ * Checks the streaming readers against what the org.json code they replaced got out of the
+ * same responses.
+ */
+public class JsonResponsesTest {
+
+    /**
+     * Migration assistance response of the given number of indices
+     */
+    static String assistancePayload(int indices) {
+        JSONObject json = new JSONObject();
+        JSONObject all = new JSONObject();
+        for (int i = 0; i < indices; i++) {
+            all.put("index-" + i, new JSONObject()
+                    .put("action_required", i % 3 == 0 ? "reindex" : i % 3 == 1 ? "upgrade" : "none")
+                    .put("details", "This index was created with version 5.6.16 and needs to be reindexed")
+                    .put("url", "https://www.elastic.co/guide/en/elasticsearch/reference/6.8/reindex-upgrade.html")
+                    .put("deprecations", new JSONArray().put(new JSONObject().put("level", "critical"))));
+        }
+        json.put("indices", all);
+        return json.toString();
+    }
+
+    /**
+     * The org.json code UpgradeAssistantApi used before the readers
+     */
+    static Map<String, String> readActionRequiredDom(String content) {
+        Map<String, String> actions = new HashMap<>();
+        JSONObject indices = new JSONObject(content).getJSONObject("indices");
+        Iterator<String> keys = indices.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            actions.put(key, indices.getJSONObject(key).get("action_required").toString());
+        }
+        return actions;
+    }
+
+    static <T> T read(String content, RestApi.ResponseReader<T> reader) throws IOException {
+        try (JsonReader jsonReader = new JsonReader(new StringReader(content))) {
+            return reader.read(jsonReader);
+        }
+    }
+
+    @Test
+    public void readsActionRequired() throws IOException {
+        String content = assistancePayload(500);
+        Map<String, String> actions = read(content, JsonResponses::readActionRequired);
+        assertEquals(readActionRequiredDom(content), new HashMap<>(actions));
+    }
+
+    @Test
+    public void readsIndicesToReindex() throws IOException {
+        JSONArray indices = new JSONArray();
+        for (int i = 0; i < 50; i++) {
+            indices.put(new JSONObject()
+                    .put("index", "index-" + i)
+                    .put("level", "critical")
+                    .put("reindex", i % 2 == 0)
+                    .put("message", "Index created before 6.0"));
+        }
+        String content = new JSONObject()
+                .put("readyForUpgrade", false)
+                .put("cluster", new JSONArray().put(new JSONObject().put("level", "warning")))
+                .put("indices", indices).toString();
+
+        List<String> expected = new ArrayList<>();
+        JSONArray dom = new JSONObject(content).getJSONArray("indices");
+        for (int i = 0; i < dom.length(); i++) {
+            if (dom.getJSONObject(i).getBoolean("reindex")) {
+                expected.add(dom.getJSONObject(i).getString("index"));
+            }
+        }
+        assertEquals(expected, read(content, JsonResponses::readIndicesToReindex));
+    }
+
+    @Test
+    public void readsReindexOp() throws IOException {
+        String content = new JSONObject()
+                .put("warnings", new JSONArray())
+                .put("hasRequiredPrivileges", true)
+                .put("reindexOp", new JSONObject()
+                        .put("status", 0)
+                        .put("lastCompletedStep", 20)
+                        .put("reindexTaskPercComplete", 0.25)
+                        .put("errorMessage", JSONObject.NULL)
+                        .put("reindexTaskId", "node:42")
+                        .put("indexName", ".kibana")).toString();
+
+        JSONObject dom = new JSONObject(content).getJSONObject("reindexOp");
+        JsonResponses.ReindexOp op = read(content, JsonResponses::readReindexOp);
+        assertEquals(dom.getInt("status"), op.status);
+        assertEquals(dom.getInt("lastCompletedStep"), op.lastCompletedStep);
+        assertEquals(dom.getDouble("reindexTaskPercComplete"), op.percComplete, 0);
+        assertEquals(dom.getString("reindexTaskId"), op.reindexTaskId);
+        assertNull(op.errorMessage);
+        assertNull(read("{\"warnings\":[]}", JsonResponses::readReindexOp));
+    }
+
+    @Test
+    public void readsBulkErrors() throws IOException {
+        JSONArray items = new JSONArray();
+        for (int i = 0; i < 20; i++) {
+            JSONObject result = new JSONObject().put("_id", String.valueOf(i)).put("status", 201);
+            if (i % 4 == 0) {
+                result.put("status", 429).put("error", new JSONObject()
+                        .put("type", "es_rejected_execution_exception")
+                        .put("reason", "rejected execution of bulk " + i));
+            }
+            items.put(new JSONObject().put("index", result));
+        }
+        String content = new JSONObject().put("took", 3).put("errors", true).put("items", items).toString();
+
+        List<String> expected = new ArrayList<>();
+        JSONArray dom = new JSONObject(content).getJSONArray("items");
+        for (int i = 0; i < dom.length(); i++) {
+            JSONObject result = dom.getJSONObject(i).getJSONObject("index");
+            if (result.has("error")) {
+                JSONObject error = result.getJSONObject("error");
+                expected.add(result.getString("_id") + " " + error.getString("type") + ": " + error.getString("reason"));
+            }
+        }
+        assertEquals(expected, read(content, JsonResponses::readBulkErrors));
+
+        List<JsonResponses.BulkItem> bulkItems = read(content, JsonResponses::readBulkItems);
+        assertEquals(dom.length(), bulkItems.size());
+        for (int i = 0; i < dom.length(); i++) {
+            assertEquals(dom.getJSONObject(i).getJSONObject("index").getInt("status"), bulkItems.get(i).status);
+        }
+    }
+}
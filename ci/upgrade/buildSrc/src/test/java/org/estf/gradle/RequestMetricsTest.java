@@ -0,0 +1,54 @@
+package org.estf.gradle;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * RequestMetricsTest
+ *
+ * Paths of the requests the upgrade jobs make, and the endpoint they are reported under.
+ */
+public class RequestMetricsTest {
+
+    @Test
+    public void templatesKibanaPaths() {
+        assertEquals("/api/upgrade_assistant/reindex/{index}",
+                     RequestMetrics.template("/api/upgrade_assistant/reindex/logs-2020.10.01"));
+        assertEquals("/s/{space}/api/sample_data/flights",
+                     RequestMetrics.template("/s/automation/api/sample_data/flights"));
+        assertEquals("/api/sample_data/flights", RequestMetrics.template("/api/sample_data/flights"));
+        assertEquals("/api/saved_objects/index-pattern/{id}",
+                     RequestMetrics.template("/api/saved_objects/index-pattern/0f3a1c52-9d7e-11ea-bb37-0242ac130002"));
+    }
+
+    @Test
+    public void templatesIndexPaths() {
+        assertEquals("/{index}/_bulk", RequestMetrics.template("/bank/_bulk"));
+        assertEquals("/{index}/{type}/{id}", RequestMetrics.template("/bank/account/abc"));
+        assertEquals("/_migration/upgrade/{index}", RequestMetrics.template("/_migration/upgrade/.kibana"));
+        assertEquals("/_tasks/{id}", RequestMetrics.template("/_tasks/oTUltX4IQMOUUVeiohTt8A:12345"));
+        assertEquals("/_cluster/health", RequestMetrics.template("/_cluster/health"));
+    }
+
+    @Test
+    public void templatesSnapshotPaths() {
+        assertEquals("/_snapshot/{repository}", RequestMetrics.template("/_snapshot/estf-seed"));
+        assertEquals("/_snapshot/{repository}/_all", RequestMetrics.template("/_snapshot/estf-seed/_all"));
+        assertEquals("/_snapshot/{repository}/{snapshot}",
+                     RequestMetrics.template("/_snapshot/estf-seed/seed-7.10.0"));
+        assertEquals("/_snapshot/{repository}/{snapshot}",
+                     RequestMetrics.template("/_snapshot/estf-seed/fork-kg3v1x-n2"));
+        assertEquals("/_snapshot/{repository}/{snapshot}/_restore",
+                     RequestMetrics.template("/_snapshot/estf-seed/seed-6.8.13/_restore"));
+        assertEquals("/_snapshot/{repository}/{snapshot}/_status",
+                     RequestMetrics.template("/_snapshot/estf-seed/seed-6.8.13/_status"));
+    }
+
+    @Test
+    public void templatesEmptyPath() {
+        assertEquals("/", RequestMetrics.template(null));
+        assertEquals("/", RequestMetrics.template(""));
+        assertEquals("/", RequestMetrics.template("/"));
+    }
+}
@@ -0,0 +1,188 @@
+package org.estf.gradle;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * RetryPolicyTest
+ *
+ * Runs the policy against a local http server that answers with a scripted list of status
+ * codes, 200 once the list is used up.
+ */
+public class RetryPolicyTest {
+
+    private HttpServer server;
+    private String url;
+    private CloseableHttpClient client;
+    private final Deque<Integer> statuses = new ArrayDeque<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile String retryAfter;
+
+    // Short backoffs, so the tests do not wait
+    private final RetryPolicy policy = new RetryPolicy(3, 1, 2, 10000);
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/test";
+        client = HttpClients.createDefault();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        exchange.getRequestBody().readAllBytes();
+        Integer status;
+        synchronized (statuses) {
+            status = statuses.poll();
+        }
+        if (status != null && retryAfter != null) {
+            exchange.getResponseHeaders().add(HttpHeaders.RETRY_AFTER, retryAfter);
+        }
+        exchange.sendResponseHeaders(status != null ? status : 200, -1);
+        exchange.close();
+    }
+
+    private void respond(Integer... codes) {
+        synchronized (statuses) {
+            statuses.addAll(Arrays.asList(codes));
+        }
+    }
+
+    private int execute(HttpUriRequest request) throws IOException {
+        try (CloseableHttpResponse response = policy.execute(client, request)) {
+            return response.getStatusLine().getStatusCode();
+        }
+    }
+
+    private HttpPost post() throws IOException {
+        HttpPost post = new HttpPost(url);
+        post.setEntity(new StringEntity("{}"));
+        return post;
+    }
+
+    @Test
+    public void retriesTransientStatusOfIdempotentRequests() throws IOException {
+        respond(429, 502);
+        assertEquals(200, execute(new HttpPut(url)));
+        assertEquals(3, requests.get());
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() throws IOException {
+        // The response of the last attempt is handed back
+        respond(502, 503, 504);
+        assertEquals(504, execute(new HttpGet(url)));
+        assertEquals(3, requests.get());
+    }
+
+    @Test
+    public void doesNotRetryOtherStatus() throws IOException {
+        respond(500);
+        assertEquals(500, execute(new HttpGet(url)));
+        respond(404);
+        assertEquals(404, execute(new HttpGet(url)));
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void retriesPostOnlyWhenNotProcessed() throws IOException {
+        respond(429, 503);
+        assertEquals(200, execute(post()));
+        assertEquals(3, requests.get());
+        requests.set(0);
+        respond(502);
+        assertEquals(502, execute(post()));
+        respond(504);
+        assertEquals(504, execute(post()));
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void doesNotRetryNonRepeatableBody() throws IOException {
+        respond(503);
+        HttpPost post = new HttpPost(url);
+        post.setEntity(new InputStreamEntity(new ByteArrayInputStream(new byte[] {'{', '}'})));
+        assertEquals(503, execute(post));
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void waitsForRetryAfter() throws IOException {
+        retryAfter = "1";
+        respond(429);
+        long start = System.currentTimeMillis();
+        assertEquals(200, execute(new HttpGet(url)));
+        assertTrue(System.currentTimeMillis() - start >= 1000);
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void backoffIsJitteredWithinHalfAndFullCap() {
+        RetryPolicy backoff = new RetryPolicy(10, 500, 30000, 180000);
+        for (int i = 0; i < 1000; i++) {
+            long first = backoff.backoff(1, null);
+            assertTrue(first >= 250 && first <= 500);
+            long third = backoff.backoff(3, null);
+            assertTrue(third >= 1000 && third <= 2000);
+            long capped = backoff.backoff(10, null);
+            assertTrue(capped >= 15000 && capped <= 30000);
+        }
+    }
+
+    @Test
+    public void backoffParsesRetryAfter() {
+        RetryPolicy backoff = new RetryPolicy(10, 500, 30000, 180000);
+        assertEquals(7000, backoff.backoff(1, withRetryAfter("7")));
+        assertEquals(0, backoff.backoff(1, withRetryAfter("-3")));
+        long date = backoff.backoff(1, withRetryAfter(DateUtils.formatDate(
+                new Date(System.currentTimeMillis() + 60000))));
+        assertTrue(date > 55000 && date <= 60000);
+        assertEquals(0, backoff.backoff(1, withRetryAfter(DateUtils.formatDate(new Date(0)))));
+        // Not a number nor a date, the computed backoff is used
+        long invalid = backoff.backoff(1, withRetryAfter("soon"));
+        assertTrue(invalid >= 250 && invalid <= 500);
+    }
+
+    private static BasicHttpResponse withRetryAfter(String value) {
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 429, "Too Many Requests");
+        response.setHeader(HttpHeaders.RETRY_AFTER, value);
+        return response;
+    }
+}
@@ -0,0 +1,117 @@
+package org.estf.gradle;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * UpgradePlanTest
+ *
+ * Builds the plan of the paths in ess/upgrade_paths.json, where 5.6.16 -> 6.8.13, 6.8.13,
+ * 7.8.1 and 7.9.3 each fork to 7.10.2 and 7.11.0.
+ */
+public class UpgradePlanTest {
+
+    private static Map<String, List<String>> paths(String... namesAndVersions) {
+        Map<String, List<String>> paths = new LinkedHashMap<>();
+        for (int i = 0; i < namesAndVersions.length; i += 2) {
+            paths.put(namesAndVersions[i], Arrays.asList(namesAndVersions[i + 1].split(",")));
+        }
+        return paths;
+    }
+
+    private static UpgradePlan essPlan() {
+        return new UpgradePlan(paths("upgradeTest1", "5.6.16,6.8.13,7.10.2",
+                                     "upgradeTest2", "6.8.13,7.10.2",
+                                     "upgradeTest3", "7.8.1,7.10.2",
+                                     "upgradeTest4", "7.9.3,7.10.2",
+                                     "upgradeTest5", "7.10.2,7.11.0",
+                                     "upgradeTest6", "5.6.16,6.8.13,7.11.0",
+                                     "upgradeTest7", "6.8.13,7.11.0",
+                                     "upgradeTest8", "7.8.1,7.11.0",
+                                     "upgradeTest9", "7.9.3,7.11.0",
+                                     "upgradeTest10", "7.10.1,7.11.0"));
+    }
+
+    private static List<String> ids(List<UpgradePlan.Node> nodes) {
+        List<String> ids = new ArrayList<>();
+        for (UpgradePlan.Node node : nodes) {
+            ids.add(node.getId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void sharesPrefixesOfTheEssPaths() {
+        UpgradePlan plan = essPlan();
+        assertEquals(Arrays.asList("5.6.16", "5.6.16-6.8.13", "5.6.16-6.8.13-7.10.2", "5.6.16-6.8.13-7.11.0",
+                                   "6.8.13", "6.8.13-7.10.2", "6.8.13-7.11.0",
+                                   "7.8.1", "7.8.1-7.10.2", "7.8.1-7.11.0",
+                                   "7.9.3", "7.9.3-7.10.2", "7.9.3-7.11.0",
+                                   "7.10.2", "7.10.2-7.11.0",
+                                   "7.10.1", "7.10.1-7.11.0"),
+                     ids(plan.getNodes()));
+        assertEquals(6, plan.getStarts().size());
+        // A deployment per start, and a copy for the second branch of each of the 4 forks
+        assertEquals(10, plan.getDeployments());
+        assertEquals(11, plan.getUpgrades());
+        assertEquals(12, plan.getUpgradesWithoutSharing());
+    }
+
+    @Test
+    public void keepsThePathsThroughEachNode() {
+        UpgradePlan plan = essPlan();
+        UpgradePlan.Node start = plan.getStarts().iterator().next();
+        assertTrue(start.isStart());
+        assertEquals(Arrays.asList("upgradeTest1", "upgradeTest6"), start.through);
+        assertTrue(start.jobs.isEmpty());
+
+        UpgradePlan.Node fork = start.children.get("6.8.13");
+        assertFalse(fork.isStart());
+        assertEquals(2, fork.children.size());
+        assertEquals(Arrays.asList("upgradeTest1", "upgradeTest6"), fork.through);
+        assertTrue(fork.jobs.isEmpty());
+
+        UpgradePlan.Node end = fork.children.get("7.11.0");
+        assertEquals(Arrays.asList("upgradeTest6"), end.jobs);
+        assertEquals(Arrays.asList("5.6.16", "6.8.13", "7.11.0"), end.getVersions());
+        assertEquals(start, end.getStart());
+        assertNull(end.children.get("7.10.2"));
+    }
+
+    @Test
+    public void pathEndingInsideAnotherIsNotAFork() {
+        UpgradePlan plan = new UpgradePlan(paths("short", "7.8.1,7.10.2",
+                                                 "long", "7.8.1,7.10.2,7.11.0"));
+        UpgradePlan.Node middle = plan.getStarts().iterator().next().children.get("7.10.2");
+        assertEquals(Arrays.asList("short"), middle.jobs);
+        assertEquals(Arrays.asList("short", "long"), middle.through);
+        assertEquals(1, plan.getDeployments());
+        assertEquals(2, plan.getUpgrades());
+        assertEquals(3, plan.getUpgradesWithoutSharing());
+    }
+
+    @Test
+    public void summaryListsTheTree() {
+        String summary = essPlan().summary();
+        String[] lines = summary.split("\n");
+        assertEquals("10 paths: 10 deployments, 6 data uploads and 11 upgrades, instead of 10, 10 and 12",
+                     lines[0]);
+        assertEquals(18, lines.length);
+        assertEquals("  5.6.16", lines[1]);
+        assertEquals("    6.8.13 (fork x2)", lines[2]);
+        assertEquals("      7.10.2 [upgradeTest1]", lines[3]);
+        assertEquals("      7.11.0 [upgradeTest6]", lines[4]);
+        assertEquals("  7.10.1", lines[16]);
+        assertEquals("    7.11.0 [upgradeTest10]", lines[17]);
+    }
+}
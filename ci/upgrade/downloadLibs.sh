@@ -80,6 +80,53 @@ function downloadJson() {
     fi
 }
 
+function downloadGson() {
+    echo ".. Download gson"
+    gson=$(wget "$mavenRepo/com/google/code/gson/gson/2.8.6/gson-2.8.6.jar")
+    if [ $? -ne 0 ]; then
+        echo "Error! Unable to get gson"
+        exit 1
+    fi
+}
+
+function downloadJunit() {
+    echo ".. Download junit and hamcrest"
+    junit=$(wget "$mavenRepo/junit/junit/4.13.2/junit-4.13.2.jar")
+    if [ $? -ne 0 ]; then
+        echo "Error! Unable to get junit"
+        exit 1
+    fi
+    hamcrest=$(wget "$mavenRepo/org/hamcrest/hamcrest-core/1.3/hamcrest-core-1.3.jar")
+    if [ $? -ne 0 ]; then
+        echo "Error! Unable to get hamcrest"
+        exit 1
+    fi
+}
+
+function downloadJmh() {
+    echo ".. Download jmh"
+    jmhCore=$(wget "$mavenRepo/org/openjdk/jmh/jmh-core/1.26/jmh-core-1.26.jar")
+    if [ $? -ne 0 ]; then
+        echo "Error! Unable to get jmh core"
+        exit 1
+    fi
+    jmhGenerator=$(wget "$mavenRepo/org/openjdk/jmh/jmh-generator-annprocess/1.26/jmh-generator-annprocess-1.26.jar")
+    if [ $? -ne 0 ]; then
+        echo "Error! Unable to get jmh annotation processor"
+        exit 1
+    fi
+    joptSimple=$(wget "$mavenRepo/net/sf/jopt-simple/jopt-simple/4.6/jopt-simple-4.6.jar")
+    if [ $? -ne 0 ]; then
+        echo "Error! Unable to get jopt simple"
+        exit 1
+    fi
+    commonsMath=$(wget "$mavenRepo/org/apache/commons/commons-math3/3.2/commons-math3-3.2.jar")
+    if [ $? -ne 0 ]; then
+        echo "Error! Unable to get commons math"
+        exit 1
+    fi
+}
+
 export PYTHONIOENCODING=utf8
 mavenRepo="https://repo.maven.apache.org/maven2"
 libsDir="buildSrc/libs"
@@ -89,3 +136,6 @@ downloadCloudSdk
 downloadVaultDriver
 downloadApacheHttpClientCore
 downloadJson
+downloadGson
+downloadJunit
+downloadJmh